@@ -0,0 +1,106 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.mock.MockApplication;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.RangeMarker;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.util.DocumentUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures applying replacements to a {@link Document} the way the IDE does
+ * ({@link ClangFormatAction#applyReplacements}), against always applying them one by one and
+ * always in bulk update mode, for replacement counts around
+ * {@link ClangFormatAction#BULK_UPDATE_THRESHOLD}. The threshold belongs where bulk mode starts to
+ * pay off: compare {@code eachReplacement} with {@code bulkUpdate} at 50, 100 and 200.
+ *
+ * Like a document open in an editor, the document has a listener and a range marker per KB, which
+ * is what bulk mode saves work on. {@code singlePass} is the command line runner's way of
+ * applying replacements, to a string.
+ */
+@State(Scope.Benchmark)
+public class ApplyBenchmark {
+  @Param({"102400", "1048576", "10485760"})
+  public int size;
+
+  @Param({"10", "50", "100", "200", "1000", "100000"})
+  public int replacements;
+
+  private String text;
+  private Replacements edits;
+  private Document document;
+  /** Keeps the markers reachable, documents only hold them weakly. */
+  private final List<RangeMarker> markers = new ArrayList<>();
+  private Disposable application;
+
+  @Setup
+  public void setUp() {
+    text = SyntheticInputs.source(size, false);
+    edits = SyntheticInputs.replacements(size, replacements);
+    if (ApplicationManager.getApplication() == null) {
+      // Bulk update mode notifies listeners through the application's message bus.
+      application = Disposer.newDisposable();
+      ApplicationManager.setApplication(new MockApplication(application), application);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (application != null) {
+      Disposer.dispose(application);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void createDocument() {
+    document = new DocumentImpl(text, true);
+    document.addDocumentListener(new DocumentListener() {
+      @Override
+      public void beforeDocumentChange(DocumentEvent event) {}
+
+      @Override
+      public void documentChanged(DocumentEvent event) {}
+    });
+    markers.clear();
+    for (int offset = 0; offset + 16 < text.length(); offset += 1024) {
+      markers.add(document.createRangeMarker(offset, offset + 16));
+    }
+  }
+
+  @Benchmark
+  public Document applyReplacements() {
+    ClangFormatAction.applyReplacements(document, edits);
+    return document;
+  }
+
+  @Benchmark
+  public Document eachReplacement() {
+    ClangFormatAction.applyEach(document, edits);
+    return document;
+  }
+
+  @Benchmark
+  public Document bulkUpdate() {
+    DocumentUtil.executeInBulk(document, true, () -> ClangFormatAction.applyEach(document, edits));
+    return document;
+  }
+
+  @Benchmark
+  public String singlePass() {
+    return edits.applyTo(text);
+  }
+}
@@ -0,0 +1,29 @@
+package io.probst.idea.clangformat;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs all benchmarks with allocation profiling. Pass a regular expression to select benchmarks,
+ * e.g. {@code ParseBenchmark}.
+ */
+public class BenchmarkMain {
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(args.length > 0 ? args[0] : BenchmarkMain.class.getPackage().getName() + ".*")
+        .addProfiler(GCProfiler.class)
+        .mode(Mode.AverageTime)
+        .timeUnit(TimeUnit.MICROSECONDS)
+        .warmupIterations(3)
+        .measurementIterations(5)
+        .forks(1)
+        .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,30 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/** Measures building clang-format's command line for many changed ranges. */
+@State(Scope.Benchmark)
+public class CommandArgumentsBenchmark {
+  @Param({"1", "100", "10000"})
+  public int ranges;
+
+  private List<TextRange> textRanges;
+
+  @Setup
+  public void setUp() {
+    textRanges = SyntheticInputs.ranges(ranges);
+  }
+
+  @Benchmark
+  public List<String> getCommandArguments() {
+    return ClangFormatter.getCommandArguments(
+        "clang-format", "/src/project/file.cc", 0, textRanges);
+  }
+}
@@ -0,0 +1,264 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.openapi.util.TextRange;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives concurrent format requests through the real process pipeline (spawn, write, parse,
+ * apply) against {@code benchmarks/stub-clang-format}, and reports throughput, latency, peak
+ * threads and processes, and processes and pipe tasks left running afterwards. Runs on a plain Linux box without
+ * clang-format.
+ *
+ * Arguments: {@code [--requests=N] [--concurrency=N] [--size=BYTES] [--stub=FILE] [SCENARIO...]},
+ * where scenarios are selected by name; all run by default. The hanging scenarios wait for the
+ * process timeouts, so they only run as many requests as there are process slots.
+ */
+public class LoadHarness {
+  /** Set in the environment of all stub processes, to find the ones left running. */
+  private static final String RUN_MARKER = "CLANG_FORMAT_LOAD_HARNESS";
+  private static final Map<String, Scenario> SCENARIOS = new LinkedHashMap<>();
+
+  static {
+    add(new Scenario("fast", false).env("STUB_REPLACEMENTS", 100));
+    add(new Scenario("slow", false).env("STUB_LATENCY_MS", 200).env("STUB_REPLACEMENTS", 100));
+    add(new Scenario("large-output", false)
+        .env("STUB_REPLACEMENTS", 100_000).env("STUB_VALUE_BYTES", 8));
+    add(new Scenario("failing", false).env("STUB_EXIT_CODE", 1).env("STUB_STDERR_BYTES", 1000));
+    add(new Scenario("stderr-flood", false).env("STUB_STDERR_BYTES", 4 * 1024 * 1024));
+    add(new Scenario("hang-before-read", true).env("STUB_HANG", "before-read")
+        .minimumSize(1024 * 1024));
+    add(new Scenario("hang-after-read", true).env("STUB_HANG", "after-read"));
+    add(new Scenario("hang-in-child", true).env("STUB_HANG", "child"));
+  }
+
+  private static void add(Scenario scenario) {
+    SCENARIOS.put(scenario.name, scenario);
+  }
+
+  /** Configures the stub for one run through the environment of a wrapper script. */
+  private static final class Scenario {
+    final String name;
+    /** Whether requests wait for the process timeout. */
+    final boolean hangs;
+    final Map<String, Object> env = new LinkedHashMap<>();
+    int minimumSize = 0;
+
+    Scenario(String name, boolean hangs) {
+      this.name = name;
+      this.hangs = hangs;
+    }
+
+    Scenario env(String name, Object value) {
+      env.put(name, value);
+      return this;
+    }
+
+    /** Input size needed to fill the pipe, for scenarios that stop reading. */
+    Scenario minimumSize(int size) {
+      minimumSize = size;
+      return this;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int requests = 2000;
+    int concurrency = ProcessScheduler.INSTANCE.maxProcesses() * 2;
+    int size = 16 * 1024;
+    File stub = new File("benchmarks/stub-clang-format");
+    List<Scenario> selected = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--requests=")) {
+        requests = Integer.parseInt(arg.substring("--requests=".length()));
+      } else if (arg.startsWith("--concurrency=")) {
+        concurrency = Integer.parseInt(arg.substring("--concurrency=".length()));
+      } else if (arg.startsWith("--size=")) {
+        size = Integer.parseInt(arg.substring("--size=".length()));
+      } else if (arg.startsWith("--stub=")) {
+        stub = new File(arg.substring("--stub=".length()));
+      } else if (SCENARIOS.containsKey(arg)) {
+        selected.add(SCENARIOS.get(arg));
+      } else {
+        throw new IllegalArgumentException("unknown argument " + arg + ", scenarios are "
+            + SCENARIOS.keySet());
+      }
+    }
+    if (!stub.canExecute()) {
+      throw new IllegalArgumentException(stub + " is not executable, pass --stub=");
+    }
+    if (selected.isEmpty()) {
+      selected.addAll(SCENARIOS.values());
+    }
+
+    File workDir = Files.createTempDirectory("clang-format-load").toFile();
+    System.out.println(String.format(Locale.ROOT,
+        "%d requests of %d bytes, %d concurrent, %d process slots, %s pipe threads%n",
+        requests, size, concurrency, ProcessScheduler.INSTANCE.maxProcesses(),
+        ProcessScheduler.INSTANCE.usesVirtualThreads() ? "virtual" : "pooled"));
+    System.out.println(String.format(Locale.ROOT, "%-17s %6s %6s %8s %8s %8s %8s %8s %7s %5s %6s %5s",
+        "scenario", "ok", "failed", "req/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "threads",
+        "procs", "leaked", "pipes"));
+    for (Scenario scenario : selected) {
+      int count = scenario.hangs ? ProcessScheduler.INSTANCE.maxProcesses() : requests;
+      run(scenario, stub.getAbsoluteFile(), workDir, count, concurrency,
+          Math.max(size, scenario.minimumSize));
+    }
+  }
+
+  private static void run(Scenario scenario, File stub, File workDir, int requests,
+                          int concurrency, int size) throws Exception {
+    File wrapper = writeWrapper(scenario, stub, workDir);
+    Toolchain.useFixed(wrapper.getPath(), System.getenv("PATH"));
+    Toolchain.get().get();
+    FormatResultCache.INSTANCE.clear();
+    FormatStats.INSTANCE.clear();
+    String text = SyntheticInputs.source(size, false);
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    threads.resetPeakThreadCount();
+    AtomicInteger peakProcesses = new AtomicInteger();
+    ExecutorService sampler = Executors.newSingleThreadExecutor();
+    Future<?> sampling = sampler.submit(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        peakProcesses.accumulateAndGet(ProcessScheduler.INSTANCE.activeProcesses(), Math::max);
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    });
+
+    LatencyHistogram latency = new LatencyHistogram();
+    AtomicLong maxNanos = new AtomicLong();
+    AtomicInteger ok = new AtomicInteger();
+    Map<String, Integer> failures = Collections.synchronizedMap(new TreeMap<>());
+    ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+    long started = System.nanoTime();
+    List<Future<?>> futures = new ArrayList<>(requests);
+    for (int i = 0; i < requests; i++) {
+      // Distinct contents, so that no request is answered from the result cache.
+      String contents = text + "// request " + i + "\n";
+      String filePath = new File(workDir, "input" + i + ".cc").getPath();
+      futures.add(clients.submit(() -> {
+        long start = System.nanoTime();
+        try {
+          Replacements replacements = ClangFormatter.format(filePath, contents,
+              Utf8OffsetIndex.of(contents), 0,
+              Collections.singletonList(new TextRange(0, contents.length() - 1)));
+          Document document = new DocumentImpl(contents);
+          ClangFormatAction.applyEach(document, replacements);
+          ok.incrementAndGet();
+        } catch (ClangFormatter.FormatException | RuntimeException e) {
+          failures.merge(summarize(e), 1, Integer::sum);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        long nanos = System.nanoTime() - start;
+        latency.recordNanos(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    long elapsed = System.nanoTime() - started;
+    clients.shutdown();
+    sampling.cancel(true);
+    sampler.shutdown();
+
+    // Give killed processes a moment to go away, and their pipe tasks to end, before looking for
+    // survivors.
+    Thread.sleep(200);
+    List<String> leaked = findProcesses(workDir);
+    int stuckPipes = ProcessScheduler.INSTANCE.activePipeTasks();
+    System.out.println(String.format(Locale.ROOT,
+        "%-17s %6d %6d %8.1f %8.1f %8.1f %8.1f %8.1f %7d %5d %6d %5d", scenario.name, ok.get(),
+        requests - ok.get(), requests / (elapsed / 1e9), latency.percentileMicros(50) / 1000.0,
+        latency.percentileMicros(95) / 1000.0, latency.percentileMicros(99) / 1000.0,
+        maxNanos.get() / 1e6, threads.getPeakThreadCount(), peakProcesses.get(), leaked.size(),
+        stuckPipes));
+    for (Map.Entry<String, Integer> failure : failures.entrySet()) {
+      System.out.println(String.format(Locale.ROOT, "  %5d x %s", failure.getValue(),
+          failure.getKey()));
+    }
+    for (String pid : leaked) {
+      new ProcessBuilder("kill", "-9", pid).start().waitFor();
+    }
+  }
+
+  /** Writes a script that runs the stub with the scenario's environment. */
+  private static File writeWrapper(Scenario scenario, File stub, File workDir) throws IOException {
+    StringBuilder script = new StringBuilder("#!/bin/sh\n")
+        .append("export ").append(RUN_MARKER).append("='").append(workDir.getPath()).append("'\n");
+    for (Map.Entry<String, Object> entry : scenario.env.entrySet()) {
+      script.append("export ").append(entry.getKey()).append("='").append(entry.getValue())
+          .append("'\n");
+    }
+    script.append("exec '").append(stub.getPath()).append("' \"$@\"\n");
+    File wrapper = new File(workDir, scenario.name);
+    Files.write(wrapper.toPath(), script.toString().getBytes(StandardCharsets.UTF_8));
+    if (!wrapper.setExecutable(true)) {
+      throw new IOException("cannot make " + wrapper + " executable");
+    }
+    return wrapper;
+  }
+
+  /** Returns the first line of the failure's message, which is the same for all requests. */
+  private static String summarize(Exception e) {
+    String message = String.valueOf(e.getMessage());
+    int end = message.indexOf('\n');
+    int br = message.indexOf("<br/>");
+    if (br >= 0 && (end < 0 || br < end)) {
+      end = br;
+    }
+    message = end < 0 ? message : message.substring(0, end);
+    return message.length() > 100 ? message.substring(0, 100) + "..." : message;
+  }
+
+  /**
+   * Returns the ids of processes started for this run that are still running, found through the
+   * marker in their environment. This also finds processes that outlived their parent.
+   */
+  private static List<String> findProcesses(File workDir) {
+    List<String> pids = new ArrayList<>();
+    File[] entries = new File("/proc").listFiles();
+    if (entries == null) {
+      return pids;
+    }
+    String marker = RUN_MARKER + "=" + workDir.getPath();
+    for (File entry : entries) {
+      if (!entry.getName().matches("\\d+")) {
+        continue;
+      }
+      try {
+        byte[] environ = Files.readAllBytes(new File(entry, "environ").toPath());
+        if (new String(environ, StandardCharsets.UTF_8).contains(marker)) {
+          pids.add(entry.getName());
+        }
+      } catch (IOException e) {
+        // Exited meanwhile, or not ours to read.
+      }
+    }
+    return pids;
+  }
+}
@@ -0,0 +1,28 @@
+package io.probst.idea.clangformat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+
+/** Measures parsing clang-format's {@code -output-replacements-xml} output. */
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+  @Param({"10", "1000", "100000"})
+  public int replacements;
+
+  private byte[] xml;
+
+  @Setup
+  public void setUp() {
+    xml = SyntheticInputs.replacementsXml(replacements);
+  }
+
+  @Benchmark
+  public Replacements parse() {
+    return Replacements.parse(new ByteArrayInputStream(xml));
+  }
+}
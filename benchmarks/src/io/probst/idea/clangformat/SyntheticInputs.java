@@ -0,0 +1,64 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates deterministic C++-like sources and clang-format outputs for the benchmarks.
+ */
+final class SyntheticInputs {
+  private SyntheticInputs() {}
+
+  /**
+   * Returns roughly {@code size} characters of badly formatted C++. If {@code multibyte} is set,
+   * every line carries a comment with non-ASCII characters.
+   */
+  static String source(int size, boolean multibyte) {
+    StringBuilder sb = new StringBuilder(size + 128);
+    for (int i = 0; sb.length() < size; i++) {
+      sb.append("int    value").append(i).append(" =  compute( ").append(i).append(" );");
+      sb.append(multibyte ? "  // \u00e9t\u00e9 \u4e2d\u6587 \ud83d\ude00\n" : "  // plain ascii\n");
+    }
+    sb.setLength(size);
+    return sb.toString();
+  }
+
+  /**
+   * Returns {@code count} replacements spread evenly over a text of {@code size} characters, each
+   * replacing two characters with one space. The count is capped at one replacement per four
+   * characters, so that the replacements never overlap.
+   */
+  static Replacements replacements(int size, int count) {
+    count = Math.min(count, size / 4);
+    Replacements replacements = new Replacements();
+    int stride = size / Math.max(count, 1);
+    for (int i = 0; i < count; i++) {
+      replacements.add(i * stride, 2, " ");
+    }
+    return replacements;
+  }
+
+  /** Returns clang-format's XML output for {@code count} replacements. */
+  static byte[] replacementsXml(int count) {
+    StringBuilder sb = new StringBuilder("<?xml version='1.0'?>\n"
+        + "<replacements xml:space='preserve' incomplete_format='false'>\n"
+        + "<cursor>0</cursor>\n");
+    for (int i = 0; i < count; i++) {
+      sb.append("<replacement offset='").append(i * 37).append("' length='2'>")
+          .append(i % 3 == 0 ? "&#10;  " : " ").append("</replacement>\n");
+    }
+    return sb.append("</replacements>\n").toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Returns {@code count} disjoint ranges, as produced for a heavily edited file. */
+  static List<TextRange> ranges(int count) {
+    List<TextRange> ranges = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ranges.add(new TextRange(i * 100, i * 100 + 40));
+    }
+    return ranges;
+  }
+}
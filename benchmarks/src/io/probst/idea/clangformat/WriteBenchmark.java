@@ -0,0 +1,53 @@
+package io.probst.idea.clangformat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.OutputStream;
+
+/** Measures encoding file contents onto clang-format's stdin, and building the offset index. */
+@State(Scope.Benchmark)
+public class WriteBenchmark {
+  @Param({"1024", "102400", "1048576", "10485760"})
+  public int size;
+
+  @Param({"false", "true"})
+  public boolean multibyte;
+
+  private String text;
+
+  @Setup
+  public void setUp() {
+    text = SyntheticInputs.source(size, multibyte);
+  }
+
+  @Benchmark
+  public long writeFileContents() {
+    CountingOutputStream out = new CountingOutputStream();
+    ClangFormatter.writeFileContents(text, out);
+    return out.count;
+  }
+
+  @Benchmark
+  public Utf8OffsetIndex buildOffsetIndex() {
+    return Utf8OffsetIndex.of(text);
+  }
+
+  /** Discards its input, like a pipe with an infinitely fast reader. */
+  private static class CountingOutputStream extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
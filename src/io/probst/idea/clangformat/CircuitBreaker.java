@@ -0,0 +1,93 @@
+package io.probst.idea.clangformat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Suspends automatic formatting (checks while typing, format on save) after clang-format failed or
+ * hung several times in a row, so that a broken installation does not cost a process, a timeout
+ * and an error on every edit.
+ *
+ * After {@link #FAILURE_THRESHOLD} consecutive failures the breaker opens. While open, one
+ * automatic run per cool-down is let through as a probe; the cool-down doubles with every failure,
+ * up to {@link #MAX_COOL_DOWN_MILLIS}. Explicit formatting always runs. Any successful run closes
+ * the breaker again.
+ */
+final class CircuitBreaker {
+  static final CircuitBreaker INSTANCE = new CircuitBreaker(System::nanoTime);
+
+  static final int FAILURE_THRESHOLD = 3;
+  static final long INITIAL_COOL_DOWN_MILLIS = 30_000;
+  static final long MAX_COOL_DOWN_MILLIS = 10 * 60_000;
+
+  private final LongSupplier nanoClock;
+  private boolean enabled = true;
+  private int failures = 0;
+  private boolean open = false;
+  private long coolDownMillis = INITIAL_COOL_DOWN_MILLIS;
+  /** When the next probe may run, while open. */
+  private long nextProbe = 0;
+
+  CircuitBreaker(LongSupplier nanoClock) {
+    this.nanoClock = nanoClock;
+  }
+
+  /**
+   * Turns the breaker off, for running outside of the IDE (see {@link ClangFormatCli}), where
+   * there is no automatic formatting to suspend.
+   */
+  synchronized void disable() {
+    enabled = false;
+    recordSuccess();
+  }
+
+  /** Whether an automatic run may start clang-format now. */
+  synchronized boolean allowAutomatic() {
+    if (!open) {
+      return true;
+    }
+    long now = nanoClock.getAsLong();
+    if (now - nextProbe < 0) {
+      return false;
+    }
+    // Let this run through as the probe, and hold back the others for another cool-down.
+    nextProbe = now + TimeUnit.MILLISECONDS.toNanos(coolDownMillis);
+    return true;
+  }
+
+  synchronized void recordSuccess() {
+    failures = 0;
+    open = false;
+    coolDownMillis = INITIAL_COOL_DOWN_MILLIS;
+  }
+
+  /**
+   * Records that clang-format failed or timed out. Returns true if this failure opened the breaker,
+   * so that the caller can tell the user once.
+   */
+  synchronized boolean recordFailure() {
+    if (!enabled) {
+      return false;
+    }
+    failures++;
+    if (open) {
+      coolDownMillis = Math.min(coolDownMillis * 2, MAX_COOL_DOWN_MILLIS);
+      nextProbe = nanoClock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(coolDownMillis);
+      return false;
+    }
+    if (failures < FAILURE_THRESHOLD) {
+      return false;
+    }
+    open = true;
+    nextProbe = nanoClock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(coolDownMillis);
+    return true;
+  }
+
+  synchronized boolean isOpen() {
+    return open;
+  }
+
+  synchronized long coolDownMillis() {
+    return coolDownMillis;
+  }
+}
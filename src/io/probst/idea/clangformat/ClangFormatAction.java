@@ -1,54 +1,42 @@
 package io.probst.idea.clangformat;
 
-import com.google.common.base.Splitter;
 import com.intellij.notification.Notification;
 import com.intellij.notification.NotificationType;
 import com.intellij.notification.Notifications;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.CommonDataKeys;
-import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.editor.Caret;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.DocumentUtil;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.annotation.XmlAttribute;
-import javax.xml.bind.annotation.XmlElement;
-import javax.xml.bind.annotation.XmlRootElement;
-import javax.xml.bind.annotation.XmlValue;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
- * Runs clang-format on the current statement or selection (if any), and applies the formatting
- * updates to the editor.
+ * Runs clang-format on the current statement or selection (if any) of each caret, and applies the
+ * formatting updates to the editor.
  */
 public class ClangFormatAction extends AnAction implements DumbAware {
-  static final ExecutorService EXECUTOR = ForkJoinPool.commonPool();
-  public static final boolean IS_MAC_OS = System.getProperty("os.name").contains("Mac OS X");
+  public static final boolean IS_MAC_OS = ClangFormatter.IS_MAC_OS;
+  /**
+   * Replacement count above which documents are updated in bulk mode, where it pays off over
+   * per-replacement events (see {@code ApplyBenchmark} in the benchmarks module).
+   */
+  static final int BULK_UPDATE_THRESHOLD = 100;
+  /** How long errors are coalesced into a notification that is still showing. */
+  static final long ERROR_COALESCE_MILLIS = 30_000;
+
+  private static final Key<LastError> LAST_ERROR = Key.create("clangformat.lastError");
 
   @Override
   public void update(AnActionEvent e) {
@@ -60,20 +48,39 @@ public class ClangFormatAction extends AnAction implements DumbAware {
   /**
    * Get the ranges for formatting.
    *
-   * This can be overridden by a subclass for determining custom ranges to format.
+   * This can be overridden by a subclass for determining custom ranges to format. It is called on the
+   * event dispatch thread; ranges that are expensive to compute should be computed in
+   * {@link #getBackgroundFormatRanges} instead.
    *
    * @param document The document to check.
    * @param editor The Editor which has opened this document
    * @param virtualFile The file which should be formatted
-   * @return A collection of TextRanges which should be formatted by clang-format
+   * @return A collection of TextRanges which should be formatted by clang-format, or null to compute
+   *     them with {@link #getBackgroundFormatRanges}
    */
   protected Collection<TextRange> getFormatRanges(Project project, Document document, Editor editor, VirtualFile virtualFile) {
-      // IntelliJ reports a cursor at the end of the file as being at file length + 1, which breaks
-      // clang-format.
-      int docLength = document.getTextLength() - 1;
-      int selectionStart = Math.min(editor.getSelectionModel().getSelectionStart(), docLength);
-      int selectionLength = Math.min(editor.getSelectionModel().getSelectionEnd(), docLength) - selectionStart;
-      return Collections.singletonList(new TextRange(selectionStart, selectionStart + selectionLength));
+    return getCaretRanges(document, editor, false);
+  }
+
+  /**
+   * Returns the selections of all carets, merged where they overlap. Carets without a selection
+   * contribute an empty range at the caret, for which clang-format formats the enclosing line(s),
+   * unless {@code selectionsOnly} is set.
+   */
+  static List<TextRange> getCaretRanges(Document document, Editor editor, boolean selectionsOnly) {
+    // IntelliJ reports a cursor at the end of the file as being at file length + 1, which breaks
+    // clang-format.
+    int docLength = document.getTextLength() - 1;
+    List<TextRange> ranges = new ArrayList<>();
+    for (Caret caret : editor.getCaretModel().getAllCarets()) {
+      if (selectionsOnly && !caret.hasSelection()) {
+        continue;
+      }
+      int selectionStart = Math.min(caret.getSelectionStart(), docLength);
+      int selectionEnd = Math.min(caret.getSelectionEnd(), docLength);
+      ranges.add(new TextRange(selectionStart, Math.max(selectionStart, selectionEnd)));
+    }
+    return RangeCoalescer.coalesce(ranges, 0, RangeCoalescer.MAX_RANGES);
   }
 
   @Override
@@ -84,13 +91,13 @@ public class ClangFormatAction extends AnAction implements DumbAware {
       return; // can happen during startup.
 
     Document document = editor.getDocument();
-    Caret caret = editor.getCaretModel().getPrimaryCaret();
+    Caret primaryCaret = editor.getCaretModel().getPrimaryCaret();
 
     VirtualFile virtFile = actionEvent.getData(CommonDataKeys.VIRTUAL_FILE);
 
     Collection<TextRange> ranges = getFormatRanges(project, document, editor, virtFile);
 
-    if (ranges.isEmpty()) {
+    if (ranges != null && ranges.isEmpty()) {
       // Can happen if there are no VCS changes
       return;
     }
@@ -98,202 +105,140 @@ public class ClangFormatAction extends AnAction implements DumbAware {
     // IntelliJ reports a cursor at the end of the file as being at file length + 1, which breaks
     // clang-format.
     int docLength = document.getTextLength() - 1;
-    int cursor = Math.min(caret.getOffset(), docLength);
-    String filePath = virtFile.getPath();
-    ProcessBuilder builder = null;
-    Process formatter;
-    try {
-      // Comment in to debug mystifying missing binaries etc.
-      //      System.out.println("PATH is " + readInput(new ProcessBuilder()
-      //          .command("sh", "-c", "echo $PATH")
-      //          .redirectErrorStream(true)
-      //          .start()
-      //          .getInputStream()));
-      builder = getCommand(filePath, cursor, ranges);
-      formatter = builder.start();
-    } catch (IOException | InterruptedException | ExecutionException e) {
-      e.printStackTrace();
-      String command = "";
-      if (builder != null) {
-        command = "command: " + builder.command() + " in PATH=" + builder.environment().get("PATH");
-      }
-      showError(project, "running clang-format failed - not installed?<br/>"
-              + "Try running 'clang-format' in a shell, or configure its location in the preferences."
-              + "<br/>" + e.getMessage() + "<br/>" + command);
-      return;
+    int cursor = Math.min(primaryCaret.getOffset(), docLength);
+    // clang-format tracks a single cursor; all other carets and selections are mapped through the
+    // replacements.
+    List<CaretState> carets = new ArrayList<>();
+    for (Caret caret : editor.getCaretModel().getAllCarets()) {
+      carets.add(new CaretState(caret));
     }
-
-    final OutputStream outputStream = formatter.getOutputStream();
-    Future<?> outWritten = EXECUTOR.submit(() -> writeFileContents(document, outputStream));
-    final InputStream inputStream = formatter.getInputStream();
-    Future<Replacements> replacementsFuture =
-        EXECUTOR.submit(() -> Replacements.parse(inputStream));
-    final InputStream errorStream = formatter.getErrorStream();
-    Future<String> errorMessage = EXECUTOR.submit(() -> readInput(errorStream));
-
-    EXECUTOR.submit(() -> {
-      try {
-        try {
-          outWritten.get(5, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
-          showError(project, "timed out writing source file to clang-format");
-          return;
-        }
-        if (!formatter.waitFor(5, TimeUnit.SECONDS)) {
-          formatter.destroyForcibly();
-          showError(project, "timed out waiting for clang-format to finish");
-          return;
-        }
-        if (formatter.exitValue() != 0) {
-          showError(project, "clang-format failed with exit code " + formatter.exitValue()
-                  + ", error: " + errorMessage.get());
-          return;
-        }
-        final Replacements replacements = replacementsFuture.get();
-        WriteCommandAction.runWriteCommandAction(project, () -> {
-          // Track the actual location being moved by the insertions/removals.
-          int offsetCorrection = 0;
-          for (Replacement r : replacements.replacements) {
-            int actualStart = r.offset + offsetCorrection;
-            int actualEnd = actualStart + r.length;
-            document.replaceString(actualStart, actualEnd, r.value);
-            offsetCorrection -= r.length - r.value.length();
-          }
-          caret.moveToOffset(replacements.cursor);
-        });
-      } catch (InterruptedException e) {
-        showError(project, e.getMessage());
-      } catch (ExecutionException e) {
-        showError(project, e.getCause().getMessage());
+    Consumer<Replacements> apply = replacements -> {
+      applyReplacements(document, replacements);
+      for (CaretState caret : carets) {
+        caret.restore(replacements, caret.caret == primaryCaret
+            ? replacements.cursor
+            : replacements.mapOffset(caret.offset));
       }
-    });
-  }
-
-  static Future<String> PATH_FUTURE = null;
-
-  /**
-   * Mac OS X does not set a usable PATH for UI applications. This code spawns a login shell once,
-   * has it echo the actual PATH, and stores that way for future use (running a shell on each call
-   * is much too expensive).
-   */
-  static synchronized Future<String> getLoginShellPath() {
-    if (PATH_FUTURE == null) {
-      PATH_FUTURE = EXECUTOR.submit(new Callable<String>() {
-        @Override
-        public String call() throws Exception {
-          InputStream input = new ProcessBuilder()
-                                  .command("bash", "-l", "-r", "-c", "echo $PATH")
-                                  .redirectErrorStream(true)
-                                  .start()
-                                  .getInputStream();
-          return readInput(input);
-        }
-      });
+    };
+    if (ranges != null) {
+      DocumentFormatScheduler.submit(project, document, virtFile.getPath(), cursor, ranges, apply);
+    } else {
+      DocumentFormatScheduler.submit(project, document, virtFile.getPath(), cursor,
+          () -> getBackgroundFormatRanges(project, document, virtFile), apply);
     }
-    return PATH_FUTURE;
   }
 
-    private ProcessBuilder getCommand(String filePath, int cursor,
-                                      Collection<TextRange> ranges) throws ExecutionException, InterruptedException {
-    Settings settings = Settings.get();
-
-    ProcessBuilder command = new ProcessBuilder().command(
-            getCommandArguments(settings.clangFormatBinary, filePath, cursor, ranges));
-
-    if (settings.path != null) {
-      command.environment().put("PATH", settings.path);
-    } else if (IS_MAC_OS) {
-      String path = getLoginShellPath().get();
-      command.environment().put("PATH", path);
+  /** A caret's position and selection when formatting started. */
+  private static class CaretState {
+    final Caret caret;
+    final int offset;
+    final boolean hasSelection;
+    final int selectionStart;
+    final int selectionEnd;
+
+    CaretState(Caret caret) {
+      this.caret = caret;
+      this.offset = caret.getOffset();
+      this.hasSelection = caret.hasSelection();
+      this.selectionStart = caret.getSelectionStart();
+      this.selectionEnd = caret.getSelectionEnd();
     }
-    if (IS_MAC_OS && "clang-format".equals(settings.clangFormatBinary)) {
-      List<String> pathEntries =
-          Splitter.on(File.pathSeparatorChar).splitToList(command.environment().get("PATH"));
-      for (String p : pathEntries) {
-        File candidate = new File(p, "clang-format");
-        if (candidate.canExecute()) {
-          command.command().set(0, candidate.getPath());
-          break;
-        }
+
+    /**
+     * Moves the caret to {@code newOffset}, and its selection to where the selected text ended up
+     * after applying {@code replacements}.
+     */
+    void restore(Replacements replacements, int newOffset) {
+      if (!caret.isValid()) {
+        return;
+      }
+      caret.moveToOffset(newOffset);
+      if (hasSelection) {
+        caret.setSelection(replacements.mapOffset(selectionStart),
+            replacements.mapOffset(selectionEnd));
       }
     }
-    return command;
   }
 
   /**
-   * Builds a list of arguments to clang-format
+   * Get the ranges for formatting if {@link #getFormatRanges} returned null. Called in a background
+   * read action, against the document contents at the time the action was invoked.
+   *
+   * @param document The document to check.
+   * @param virtualFile The file which should be formatted
+   * @return A collection of TextRanges which should be formatted by clang-format
    */
-  private List<String> getCommandArguments(String clangFormatBinary,
-                                           String filePath,
-                                           int cursor,
-                                           Collection<TextRange> ranges) {
-      List<String> args = new ArrayList<>(Arrays.asList(clangFormatBinary, "-style=file",
-              "-output-replacements-xml", "-assume-filename=" + filePath, "-cursor=" + cursor));
-
-      // Add all the format ranges as individual -offset/-length parameters
-      for (TextRange range : ranges) {
-          args.add("-offset=" + range.getStartOffset());
-          args.add("-length=" + range.getLength());
-      }
-
-      return args;
+  protected Collection<TextRange> getBackgroundFormatRanges(Project project, Document document,
+                                                            VirtualFile virtualFile) {
+    return Collections.emptyList();
   }
 
-  private void writeFileContents(Document document, OutputStream outputStream) {
-    try (OutputStreamWriter out = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)) {
-      CharSequence contents = document.getImmutableCharSequence();
-      out.append(contents);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  /**
+   * Applies {@code replacements} to {@code document}. Must be called within a write command.
+   *
+   * Each replacement fires document events and updates editors, folding and markers. For large
+   * replacement sets (e.g. a whole-file format of generated code), the document is switched into
+   * bulk update mode, which defers that work to a single update when all replacements are applied.
+   */
+  static void applyReplacements(Document document, Replacements replacements) {
+    if (replacements.size() < BULK_UPDATE_THRESHOLD) {
+      applyEach(document, replacements);
+    } else {
+      DocumentUtil.executeInBulk(document, true, () -> applyEach(document, replacements));
     }
   }
 
-  private static String readInput(InputStream err) throws IOException {
-    try (InputStreamReader errorStream = new InputStreamReader(err, StandardCharsets.UTF_8)) {
-      StringBuilder sb = new StringBuilder();
-      char[] buf = new char[4096];
-      int read = 0;
-      while ((read = errorStream.read(buf)) != -1) {
-        sb.append(buf, 0, read);
-      }
-      return sb.toString();
+  static void applyEach(Document document, Replacements replacements) {
+    // Track the actual location being moved by the insertions/removals.
+    int offsetCorrection = 0;
+    for (int i = 0; i < replacements.size(); i++) {
+      int actualStart = replacements.offset(i) + offsetCorrection;
+      int actualEnd = actualStart + replacements.length(i);
+      String value = replacements.value(i);
+      document.replaceString(actualStart, actualEnd, value);
+      offsetCorrection -= replacements.length(i) - value.length();
     }
   }
 
+  /**
+   * Notifies the user of a formatting error. While an error notification of the project is still
+   * showing, further errors within {@link #ERROR_COALESCE_MILLIS} are only counted, and the count is
+   * shown with the next error notification.
+   */
   public static void showError(Project project, String errorMsg) {
-    Notification notification =
-        new Notification("ClangFormatIJ", "Formatting Failed", errorMsg, NotificationType.ERROR);
-    Notifications.Bus.notify(notification, project);
-  }
-
-  @XmlRootElement
-  static class Replacements {
-    static final JAXBContext REPLACEMENTS_CTX;
-
-    static {
-      try {
-        REPLACEMENTS_CTX = JAXBContext.newInstance(Replacements.class);
-      } catch (JAXBException e) {
-        throw new RuntimeException("Failed to load JAXB context", e);
-      }
-    }
-
-    static Replacements parse(InputStream inputStream) {
-      try {
-        // JAXB closes the InputStream.
-        return (Replacements) REPLACEMENTS_CTX.createUnmarshaller().unmarshal(inputStream);
-      } catch (JAXBException e) {
-        throw new RuntimeException("Failed to parse clang-format XML replacements", e);
+    String content = errorMsg;
+    if (project != null) {
+      synchronized (LAST_ERROR) {
+        LastError last = project.getUserData(LAST_ERROR);
+        long now = System.currentTimeMillis();
+        if (last != null && !last.notification.isExpired()
+            && now - last.shownAt < ERROR_COALESCE_MILLIS) {
+          last.suppressed++;
+          return;
+        }
+        if (last != null && last.suppressed > 0) {
+          content += "<br/>(" + last.suppressed + " more errors were not shown)";
+        }
+        Notification notification =
+            new Notification("ClangFormatIJ", "Formatting Failed", content, NotificationType.ERROR);
+        project.putUserData(LAST_ERROR, new LastError(notification, now));
+        Notifications.Bus.notify(notification, project);
       }
+      return;
     }
-
-    @XmlElement int cursor;
-    @XmlElement(name = "replacement") List<Replacement> replacements;
+    Notifications.Bus.notify(
+        new Notification("ClangFormatIJ", "Formatting Failed", content, NotificationType.ERROR));
   }
 
-  static class Replacement {
-    @XmlAttribute int offset;
-    @XmlAttribute int length;
-    @XmlValue String value;
+  /** The last error notification shown for a project. */
+  private static final class LastError {
+    final Notification notification;
+    final long shownAt;
+    int suppressed = 0;
+
+    LastError(Notification notification, long shownAt) {
+      this.notification = notification;
+      this.shownAt = shownAt;
+    }
   }
 }
@@ -5,27 +5,38 @@ import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vcs.ex.LineStatusTracker;
+import com.intellij.openapi.vcs.ex.Range;
+import com.intellij.openapi.vcs.impl.LineStatusTrackerManager;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
 import com.intellij.psi.codeStyle.ChangedRangesInfo;
 import com.intellij.util.diff.FilesTooBigForDiffException;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 /**
- * Runs clang-format on the current selection or on the whole file if there is no selection.
+ * Runs clang-format on the selections of all carets, or on the whole file if there is no selection.
  * Applies the formatting updates to the editor.
  */
 public class ClangFormatAutoAction extends ClangFormatAction {
 
-    private Collection<TextRange> getVcsTextRanges(Project project, VirtualFile virtualFile) {
+    /**
+     * Returns the ranges changed compared to the VCS version of the file, or null if the file is not
+     * under VCS. Must be called in a read action.
+     */
+    static Collection<TextRange> getVcsTextRanges(Project project, Document document, VirtualFile virtualFile) {
         final PsiManager myPsiManager = PsiManager.getInstance(project);
         PsiFile psiFile = myPsiManager.findFile(virtualFile);
+        if (psiFile == null) {
+            return null;
+        }
+        FormatChangedTextUtil textUtil = FormatChangedTextUtil.getInstance();
         try {
-            FormatChangedTextUtil textUtil = FormatChangedTextUtil.getInstance();
-
             // Check if the file is under VCS. If it is not then we just use the standard code
             if (!textUtil.isChangeNotTrackedForFile(project, psiFile)) {
                 ChangedRangesInfo changedRangesInfo = textUtil.getChangedRangesInfo(psiFile);
@@ -37,44 +48,85 @@ public class ClangFormatAutoAction extends ClangFormatAction {
                 return Collections.emptyList();
             }
         } catch (FilesTooBigForDiffException e) {
-            // Ignore and let the standard case handle this. If a file is too big to diff then a full reformat should
-            // probably be fine
+            // The file is too big to diff here, but the line status tracker may already know the
+            // changed lines, which is far cheaper than reformatting the whole file.
+            return getLineStatusRanges(project, document);
         }
         return null;
     }
 
+    /**
+     * Returns the changed ranges known to the editor's line status tracker, or null if the document
+     * has no (valid) tracker. The tracker keeps them up to date while editing, so this is cheap.
+     */
+    static Collection<TextRange> getLineStatusRanges(Project project, Document document) {
+        LineStatusTracker tracker = LineStatusTrackerManager.getInstance(project).getLineStatusTracker(document);
+        if (tracker == null) {
+            return null;
+        }
+        List<Range> ranges = tracker.getRanges();
+        if (ranges == null) {
+            return null;
+        }
+        List<TextRange> result = new ArrayList<>(ranges.size());
+        for (Range range : ranges) {
+            int start = lineStartOffset(document, range.getLine1());
+            // Deletions have an empty line range; format around the point where the lines were removed.
+            int end = range.getLine2() > range.getLine1()
+                ? document.getLineEndOffset(range.getLine2() - 1)
+                : start;
+            result.add(new TextRange(start, end));
+        }
+        return result;
+    }
+
+    private static int lineStartOffset(Document document, int line) {
+        return line < document.getLineCount() ? document.getLineStartOffset(line) : document.getTextLength();
+    }
+
     @Override
     protected Collection<TextRange> getFormatRanges(Project project,
                                                     Document document,
                                                     Editor editor,
                                                     VirtualFile virtualFile) {
-        Settings settings = Settings.get();
-
+        // Formatting the VCS changed text will only be done if nothing is selected. Otherwise you can't force a reformat
+        // of some code that was not changed from the VCS version
+        if (editor.getSelectionModel().hasSelection(true)) {
+            return getCaretRanges(document, editor, true);
+        }
+        if (Settings.get().updateOnlyChangedText) {
+            // Diffing against the VCS version can take a while, so it is done in the background, see
+            // getBackgroundFormatRanges.
+            return null;
+        }
         // IntelliJ reports a cursor at the end of the file as being at file length + 1, which breaks
         // clang-format.
-        int docLength = document.getTextLength() - 1;
-        int selectionStart = Math.min(editor.getSelectionModel().getSelectionStart(), docLength);
-        int selectionLength = Math.min(editor.getSelectionModel().getSelectionEnd(), docLength) - selectionStart;
+        return Collections.singletonList(new TextRange(0, document.getTextLength() - 1));
+    }
 
-        // Formatting the VCS changed text will only be done if nothing is selected. Otherwise you can't force a reformat
-        // of some code that was not changed from the VCS version
-        if (selectionLength <= 0 && settings.updateOnlyChangedText) {
-            // This case only formats the text changed in the VCS. If the diff is too large or we are not in a VCS file
-            // then the standard behavior will be used (selection or whole file)
-            Collection<TextRange> vcsRanges = getVcsTextRanges(project, virtualFile);
+    @Override
+    protected Collection<TextRange> getBackgroundFormatRanges(Project project,
+                                                              Document document,
+                                                              VirtualFile virtualFile) {
+        return getChangedRanges(project, document, virtualFile);
+    }
 
-            // getVcsTextRanges returns null if it could return any valid ranges in which case we
-            // will use the non-VCS branch
-            if (vcsRanges != null) {
-                // The VCS has returned some ranges to format
-                return vcsRanges;
-            }
-        }
+    /**
+     * Returns the ranges changed compared to the VCS version, merged and capped, or the whole file
+     * if it is not under VCS. Must be called in a read action.
+     */
+    static Collection<TextRange> getChangedRanges(Project project, Document document, VirtualFile virtualFile) {
+        // This case only formats the text changed in the VCS. If we are not in a VCS file then the whole file is
+        // formatted.
+        Collection<TextRange> vcsRanges = getVcsTextRanges(project, document, virtualFile);
 
-        if (selectionLength <= 0) {
-            return Collections.singletonList(new TextRange(0, docLength));
-        } else {
-            return Collections.singletonList(new TextRange(selectionStart, selectionStart + selectionLength));
+        // getVcsTextRanges returns null if it could return any valid ranges in which case we
+        // will use the non-VCS branch
+        if (vcsRanges == null) {
+            return Collections.singletonList(new TextRange(0, document.getTextLength() - 1));
         }
+        // Heavily edited files can have hundreds of changed ranges; merge those close to each other and cap the
+        // number of -offset/-length arguments.
+        return RangeCoalescer.coalesce(vcsRanges, Settings.get().rangeMergeGap, RangeCoalescer.MAX_RANGES);
     }
 }
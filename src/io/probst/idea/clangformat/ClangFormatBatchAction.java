@@ -0,0 +1,319 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.actionSystem.LangDataKeys;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootManager;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vcs.VcsDataKeys;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ChangeList;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileVisitor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs clang-format on all supported files in the selected directories, modules or changelists,
+ * and applies the formatting updates.
+ *
+ * Files are formatted in parallel on a pool sized to the number of cores. Results are applied in
+ * batched write commands, so that reformatting a large tree neither blocks the UI for long nor
+ * floods the undo stack with one command per file.
+ */
+public class ClangFormatBatchAction extends AnAction implements DumbAware {
+  /** Number of formatted files applied per write command. */
+  private static final int APPLY_BATCH_SIZE = 50;
+
+  @Override
+  public void update(AnActionEvent e) {
+    Project project = e.getData(CommonDataKeys.PROJECT);
+    e.getPresentation().setEnabledAndVisible(project != null
+        && (e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY) != null
+            || e.getData(LangDataKeys.MODULE_CONTEXT_ARRAY) != null
+            || e.getData(VcsDataKeys.CHANGE_LISTS) != null
+            || e.getData(VcsDataKeys.CHANGES) != null));
+  }
+
+  @Override
+  public void actionPerformed(AnActionEvent e) {
+    Project project = e.getData(CommonDataKeys.PROJECT);
+    if (project == null) {
+      return;
+    }
+    List<VirtualFile> roots = getSelectedRoots(e);
+    // Make sure the formatter sees what is on screen, not a stale file on disk.
+    FileDocumentManager.getInstance().saveAllDocuments();
+
+    new Task.Backgroundable(project, "Formatting with clang-format", true) {
+      @Override
+      public void run(ProgressIndicator indicator) {
+        formatAll(project, collectFiles(project, roots, indicator), indicator);
+      }
+    }.queue();
+  }
+
+  private static List<VirtualFile> getSelectedRoots(AnActionEvent e) {
+    List<VirtualFile> roots = new ArrayList<>();
+    VirtualFile[] files = e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY);
+    if (files != null) {
+      roots.addAll(Arrays.asList(files));
+    }
+    Module[] modules = e.getData(LangDataKeys.MODULE_CONTEXT_ARRAY);
+    if (modules != null) {
+      for (Module module : modules) {
+        roots.addAll(Arrays.asList(ModuleRootManager.getInstance(module).getContentRoots()));
+      }
+    }
+    ChangeList[] changeLists = e.getData(VcsDataKeys.CHANGE_LISTS);
+    if (changeLists != null) {
+      for (ChangeList changeList : changeLists) {
+        addChangedFiles(changeList.getChanges(), roots);
+      }
+    }
+    Change[] changes = e.getData(VcsDataKeys.CHANGES);
+    if (changes != null) {
+      addChangedFiles(Arrays.asList(changes), roots);
+    }
+    return roots;
+  }
+
+  private static void addChangedFiles(Iterable<Change> changes, List<VirtualFile> roots) {
+    for (Change change : changes) {
+      VirtualFile file = change.getVirtualFile();
+      // Deleted files have no virtual file.
+      if (file != null) {
+        roots.add(file);
+      }
+    }
+  }
+
+  /** Expands {@code roots} into the set of supported, non-excluded project files below them. */
+  private static Set<VirtualFile> collectFiles(Project project, List<VirtualFile> roots,
+                                               ProgressIndicator indicator) {
+    indicator.setText("Collecting files");
+    ProjectFileIndex index = ProjectRootManager.getInstance(project).getFileIndex();
+    Set<VirtualFile> result = new LinkedHashSet<>();
+    ReadAction.run(() -> {
+      for (VirtualFile root : roots) {
+        VfsUtilCore.visitChildrenRecursively(root, new VirtualFileVisitor<Void>() {
+          @Override
+          public boolean visitFile(VirtualFile file) {
+            indicator.checkCanceled();
+            if (index.isExcluded(file)) {
+              return false;
+            }
+            if (!file.isDirectory() && isSupported(file)) {
+              result.add(file);
+            }
+            return true;
+          }
+        });
+      }
+    });
+    return result;
+  }
+
+  static boolean isSupported(VirtualFile file) {
+    return ClangFormatter.isSupported(file.getName());
+  }
+
+  private static void formatAll(Project project, Set<VirtualFile> files,
+                                ProgressIndicator indicator) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    CompletionService<FormattedFile> completion = new ExecutorCompletionService<>(workers);
+    long start = System.nanoTime();
+    int done = 0;
+    int formatted = 0;
+    int skipped = 0;
+    // Files changed, and files not changed because they were edited while being formatted.
+    int[] applied = {0, 0};
+    List<String> errors = new ArrayList<>();
+    List<FormattedFile> pending = new ArrayList<>();
+    try {
+      for (VirtualFile file : files) {
+        completion.submit(() -> formatFile(file));
+      }
+      indicator.setIndeterminate(false);
+      for (int i = 0; i < files.size(); i++) {
+        Future<FormattedFile> next;
+        while ((next = completion.poll(100, TimeUnit.MILLISECONDS)) == null) {
+          indicator.checkCanceled();
+        }
+        FormattedFile result = next.get();
+        done++;
+        indicator.setFraction((double) done / files.size());
+        indicator.setText2(result.file.getPresentableUrl());
+        if (result.error != null) {
+          errors.add(result.file.getPresentableUrl() + ": " + result.error);
+        } else if (result.skipped) {
+          skipped++;
+        } else {
+          formatted++;
+          if (result.replacements != null) {
+            pending.add(result);
+            if (pending.size() >= APPLY_BATCH_SIZE) {
+              applyBatch(project, pending, applied);
+              pending = new ArrayList<>();
+            }
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException e) {
+      ClangFormatAction.showError(project, e.getCause().getMessage());
+      return;
+    } finally {
+      // On cancellation this interrupts the workers, which kills their clang-format processes.
+      workers.shutdownNow();
+      // Files formatted so far are applied even if the run ends early, unless the thread was
+      // interrupted and cannot wait for the write command.
+      if (!Thread.currentThread().isInterrupted()) {
+        applyBatch(project, pending, applied);
+      }
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    StringBuilder summary = new StringBuilder(String.format(Locale.ROOT,
+        "Formatted %d files (%d changed) in %.1f s, %.1f files/sec using %d threads.",
+        formatted, applied[0], seconds, done / Math.max(seconds, 0.001), threads));
+    if (applied[1] > 0) {
+      summary.append(String.format(Locale.ROOT,
+          "<br/>%d files were edited while formatting and left unchanged.", applied[1]));
+    }
+    if (skipped > 0) {
+      summary.append(String.format(Locale.ROOT,
+          "<br/>%d files skipped (empty, binary or formatting disabled).", skipped));
+    }
+    if (!errors.isEmpty()) {
+      summary.append(String.format(Locale.ROOT, "<br/>%d files failed.", errors.size()));
+    }
+    if (!errors.isEmpty()) {
+      ClangFormatAction.showError(project, errors.size() + " files failed to format:<br/>"
+          + String.join("<br/>", errors.subList(0, Math.min(errors.size(), 10))));
+    }
+    Notifications.Bus.notify(new Notification("ClangFormatIJ", "Formatting Finished",
+        summary.toString(), NotificationType.INFORMATION), project);
+  }
+
+  /** Formats {@code file}; failures are reported in the result rather than thrown. */
+  private static FormattedFile formatFile(VirtualFile file)
+      throws InterruptedException {
+    FormattedFile result = new FormattedFile(file);
+    try {
+      format(result);
+    } catch (ClangFormatter.FormatException e) {
+      result.error = e.getMessage();
+    } catch (ProcessCanceledException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      result.error = e.toString();
+    }
+    return result;
+  }
+
+  private static void format(FormattedFile result)
+      throws ClangFormatter.FormatException, InterruptedException {
+    VirtualFile file = result.file;
+    if (ConfigIndex.INSTANCE.forFile(file.getPath()).disablesFormat) {
+      result.skipped = true;
+      return; // Don't even read the file.
+    }
+    Utf8OffsetIndex[] offsetIndex = new Utf8OffsetIndex[1];
+    File[] source = new File[1];
+    ReadAction.run(() -> {
+      result.document = FileDocumentManager.getInstance().getDocument(file);
+      if (result.document != null) {
+        result.contents = result.document.getImmutableCharSequence();
+        result.modificationStamp = result.document.getModificationStamp();
+        offsetIndex[0] = Utf8OffsetIndex.of(result.contents);
+        source[0] = DocumentFormatScheduler.diskSource(result.document, offsetIndex[0]);
+      }
+    });
+    // Binary or too large files have no document, and empty files need no formatting.
+    if (result.document == null || result.contents.length() == 0) {
+      result.skipped = true;
+      return;
+    }
+    TextRange wholeFile = new TextRange(0, result.contents.length() - 1);
+    Replacements replacements = ClangFormatter.format(file.getPath(), result.contents,
+        source[0], offsetIndex[0], 0, Collections.singletonList(wholeFile));
+    if (!replacements.isEmpty()) {
+      result.replacements = replacements;
+    }
+  }
+
+  /**
+   * Applies a batch of formatted files in a single write command. Counts the files changed in
+   * {@code applied[0]}, and the ones left alone because they were edited meanwhile in
+   * {@code applied[1]}.
+   */
+  private static void applyBatch(Project project, List<FormattedFile> batch, int[] applied) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    ApplicationManager.getApplication().invokeAndWait(() ->
+        WriteCommandAction.runWriteCommandAction(project, "Reformat with clang-format", null, () -> {
+          for (FormattedFile f : batch) {
+            // The user may have edited the file since we read it; its replacements are stale then.
+            if (f.document.getModificationStamp() == f.modificationStamp) {
+              ClangFormatAction.applyReplacements(f.document, f.replacements);
+              applied[0]++;
+            } else {
+              applied[1]++;
+            }
+          }
+        }));
+  }
+
+  private static class FormattedFile {
+    final VirtualFile file;
+    Document document;
+    CharSequence contents;
+    long modificationStamp;
+    /** The replacements to apply, null if the file is already formatted. */
+    Replacements replacements;
+    String error;
+    /** Whether the file was not formatted because it is empty, binary or formatting is disabled. */
+    boolean skipped;
+
+    FormattedFile(VirtualFile file) {
+      this.file = file;
+    }
+  }
+}
@@ -0,0 +1,256 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.CommandProcessor;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vcs.CheckinProjectPanel;
+import com.intellij.openapi.vcs.changes.CommitContext;
+import com.intellij.openapi.vcs.checkin.CheckinHandler;
+import com.intellij.openapi.vcs.checkin.CheckinHandlerFactory;
+import com.intellij.openapi.vcs.ui.RefreshableOnComponent;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.JCheckBox;
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import java.awt.BorderLayout;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Formats the changed lines of the files being committed, if enabled in the commit dialog.
+ *
+ * Changed ranges are computed as by {@link ClangFormatAutoAction#getChangedRanges}, and all files
+ * are formatted concurrently on a pool sized to the number of cores. Documents are loaded from the
+ * VFS without opening editors. All edits are applied in a single undoable command.
+ */
+public class ClangFormatCheckinHandlerFactory extends CheckinHandlerFactory {
+  @NotNull
+  @Override
+  public CheckinHandler createHandler(@NotNull CheckinProjectPanel panel,
+                                      @NotNull CommitContext commitContext) {
+    return new Handler(panel);
+  }
+
+  private static class Handler extends CheckinHandler {
+    private final CheckinProjectPanel panel;
+    private final Project project;
+
+    Handler(CheckinProjectPanel panel) {
+      this.panel = panel;
+      this.project = panel.getProject();
+    }
+
+    @Override
+    public RefreshableOnComponent getBeforeCheckinConfigurationPanel() {
+      JCheckBox checkBox = new JCheckBox("Reformat changed lines with clang-format");
+      return new RefreshableOnComponent() {
+        @Override
+        public JComponent getComponent() {
+          JPanel component = new JPanel(new BorderLayout());
+          component.add(checkBox);
+          return component;
+        }
+
+        @Override
+        public void refresh() {}
+
+        @Override
+        public void saveState() {
+          Settings.setFormatBeforeCommit(checkBox.isSelected());
+        }
+
+        @Override
+        public void restoreState() {
+          checkBox.setSelected(Settings.get().formatBeforeCommit);
+        }
+      };
+    }
+
+    @Override
+    public ReturnResult beforeCheckin() {
+      if (!Settings.get().formatBeforeCommit) {
+        return ReturnResult.COMMIT;
+      }
+      List<VirtualFile> files = new ArrayList<>();
+      for (VirtualFile file : panel.getVirtualFiles()) {
+        if (file.isValid() && !file.isDirectory() && ClangFormatBatchAction.isSupported(file)) {
+          files.add(file);
+        }
+      }
+      if (files.isEmpty()) {
+        return ReturnResult.COMMIT;
+      }
+
+      long start = System.nanoTime();
+      List<FormattedFile> results = new ArrayList<>();
+      boolean completed = ProgressManager.getInstance().runProcessWithProgressSynchronously(
+          () -> formatAll(files, results, ProgressManager.getInstance().getProgressIndicator()),
+          "Reformatting Changed Lines with clang-format", true, project);
+      if (!completed) {
+        return ReturnResult.CANCEL;
+      }
+
+      List<FormattedFile> changed = new ArrayList<>();
+      List<String> errors = new ArrayList<>();
+      for (FormattedFile result : results) {
+        if (result.error != null) {
+          errors.add(result.file.getPresentableUrl() + ": " + result.error);
+        } else if (result.replacements != null) {
+          changed.add(result);
+        }
+      }
+      apply(changed);
+
+      if (!errors.isEmpty()) {
+        ClangFormatAction.showError(project, errors.size() + " files failed to format:<br/>"
+            + String.join("<br/>", errors.subList(0, Math.min(errors.size(), 10))));
+      }
+      String summary = String.format(Locale.ROOT,
+          "Formatted changed lines of %d files (%d changed) before commit in %d ms.",
+          files.size(), changed.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      Notifications.Bus.notify(new Notification("ClangFormatIJ", "Formatting Finished", summary,
+          NotificationType.INFORMATION), project);
+      return ReturnResult.COMMIT;
+    }
+
+    private void formatAll(List<VirtualFile> files, List<FormattedFile> results,
+                           ProgressIndicator indicator) {
+      int threads = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+      ExecutorService workers = Executors.newFixedThreadPool(threads);
+      try {
+        List<Future<FormattedFile>> futures = new ArrayList<>(files.size());
+        for (VirtualFile file : files) {
+          futures.add(workers.submit(() -> formatFile(file)));
+        }
+        indicator.setIndeterminate(false);
+        for (int i = 0; i < futures.size(); i++) {
+          FormattedFile result = null;
+          while (result == null) {
+            indicator.checkCanceled();
+            try {
+              result = futures.get(i).get(50, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+              // Check for cancellation again.
+            } catch (ExecutionException e) {
+              result = new FormattedFile(files.get(i));
+              result.error = String.valueOf(e.getCause());
+            }
+          }
+          results.add(result);
+          indicator.setFraction((double) (i + 1) / futures.size());
+        }
+      } catch (InterruptedException e) {
+        throw new ProcessCanceledException();
+      } finally {
+        // On cancellation this interrupts the workers, which kills their clang-format processes.
+        workers.shutdownNow();
+      }
+    }
+
+    /**
+     * Formats the changed lines of {@code file}. Failures are reported in the result, so that one
+     * file cannot fail the commit.
+     */
+    private FormattedFile formatFile(VirtualFile file) throws InterruptedException {
+      FormattedFile result = new FormattedFile(file);
+      try {
+        format(result);
+      } catch (ClangFormatter.FormatException e) {
+        result.error = e.getMessage();
+      } catch (ProcessCanceledException | InterruptedException e) {
+        throw e;
+      } catch (Exception e) {
+        result.error = e.toString();
+      }
+      return result;
+    }
+
+    private void format(FormattedFile result) throws Exception {
+      VirtualFile file = result.file;
+      Utf8OffsetIndex[] offsetIndex = new Utf8OffsetIndex[1];
+      File[] source = new File[1];
+      Collection<TextRange> ranges = ReadAction.compute(() -> {
+        if (project.isDisposed() || !file.isValid()) {
+          return null;
+        }
+        result.document = FileDocumentManager.getInstance().getDocument(file);
+        if (result.document == null || result.document.getTextLength() == 0) {
+          return null;
+        }
+        result.contents = result.document.getImmutableCharSequence();
+        result.modificationStamp = result.document.getModificationStamp();
+        offsetIndex[0] = Utf8OffsetIndex.of(result.contents);
+        source[0] = DocumentFormatScheduler.diskSource(result.document, offsetIndex[0]);
+        return ClangFormatAutoAction.getChangedRanges(project, result.document, file);
+      });
+      if (ranges == null || ranges.isEmpty()) {
+        return;
+      }
+      Replacements replacements = ClangFormatter.format(file.getPath(), result.contents,
+          source[0], offsetIndex[0], 0, ranges);
+      if (!replacements.isEmpty()) {
+        result.replacements = replacements;
+      }
+    }
+
+    /** Applies all edits in one command, so that a single undo reverts them, and saves them. */
+    private void apply(List<FormattedFile> changed) {
+      if (changed.isEmpty()) {
+        return;
+      }
+      List<Document> applied = new ArrayList<>();
+      WriteCommandAction.runWriteCommandAction(project, "Reformat with clang-format Before Commit",
+          null, () -> {
+            CommandProcessor.getInstance().markCurrentCommandAsGlobal(project);
+            for (FormattedFile f : changed) {
+              // The user may have edited the file meanwhile; its replacements are stale then.
+              if (f.document.getModificationStamp() == f.modificationStamp) {
+                ClangFormatAction.applyReplacements(f.document, f.replacements);
+                applied.add(f.document);
+              }
+            }
+          });
+      FileDocumentManager documentManager = FileDocumentManager.getInstance();
+      for (Document document : applied) {
+        // The changed lines were just formatted, format on save need not run again.
+        FormatOnSaveListener.markHandled(document);
+        documentManager.saveDocument(document);
+      }
+    }
+  }
+
+  private static class FormattedFile {
+    final VirtualFile file;
+    Document document;
+    CharSequence contents;
+    long modificationStamp;
+    /** The replacements to apply, null if the changed lines are already formatted. */
+    Replacements replacements;
+    String error;
+
+    FormattedFile(VirtualFile file) {
+      this.file = file;
+    }
+  }
+}
@@ -0,0 +1,337 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats or checks file trees from the command line with the plugin's {@link ClangFormatter}, so
+ * that CI gets exactly the IDE's behavior without starting an IDE.
+ *
+ * <pre>
+ * java -cp ClangFormatIJ.jar:$IDEA/lib/util.jar io.probst.idea.clangformat.ClangFormatCli \
+ *     [--check] [--json] [--jobs=N] [--binary=clang-format] [--path=PATH] FILE_OR_DIR...
+ * </pre>
+ *
+ * Directories are searched for files clang-format supports, skipping hidden directories. Files
+ * are formatted in parallel and read through memory mappings. With {@code --check}, files are
+ * only reported, not changed. With {@code --json}, every file is reported as a JSON object on its
+ * own line, followed by a summary with the timing statistics.
+ *
+ * Exits with 0 if all files are formatted, 1 if {@code --check} found files that are not, and 2
+ * on errors.
+ */
+public final class ClangFormatCli {
+  static final int EXIT_FORMATTED = 0;
+  static final int EXIT_UNFORMATTED = 1;
+  static final int EXIT_ERROR = 2;
+
+  private boolean check = false;
+  private boolean json = false;
+  private int jobs = Runtime.getRuntime().availableProcessors();
+  private String binary = "clang-format";
+  private String path = System.getenv("PATH");
+  private final List<Path> roots = new ArrayList<>();
+
+  private ClangFormatCli() {}
+
+  public static void main(String[] args) {
+    ClangFormatCli cli = new ClangFormatCli();
+    String error = cli.parseArguments(args);
+    if (error != null) {
+      System.err.println(error);
+      System.err.println("usage: ClangFormatCli [--check] [--json] [--jobs=N] [--binary=FILE]"
+          + " [--path=PATH] FILE_OR_DIR...");
+      System.exit(EXIT_ERROR);
+    }
+    System.exit(cli.run(System.out));
+  }
+
+  /** Parses the command line, returning an error message or null. */
+  private String parseArguments(String[] args) {
+    for (String arg : args) {
+      if (arg.equals("--check")) {
+        check = true;
+      } else if (arg.equals("--json")) {
+        json = true;
+      } else if (arg.startsWith("--jobs=")) {
+        try {
+          jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+        } catch (NumberFormatException e) {
+          return "--jobs must be a number: " + arg;
+        }
+        if (jobs < 1) {
+          return "--jobs must be at least 1: " + arg;
+        }
+      } else if (arg.startsWith("--binary=")) {
+        binary = arg.substring("--binary=".length());
+      } else if (arg.startsWith("--path=")) {
+        path = arg.substring("--path=".length());
+      } else if (arg.startsWith("--")) {
+        return "unknown option: " + arg;
+      } else {
+        roots.add(Paths.get(arg));
+      }
+    }
+    return roots.isEmpty() ? "no files given" : null;
+  }
+
+  private int run(PrintStream out) {
+    long started = System.nanoTime();
+    Toolchain.useFixed(binary, path);
+    CircuitBreaker.INSTANCE.disable();
+    List<Path> files;
+    try {
+      files = collectFiles(roots);
+    } catch (IOException e) {
+      System.err.println("listing files failed: " + e);
+      return EXIT_ERROR;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(jobs, r -> {
+      Thread thread = new Thread(r, "clang-format cli");
+      thread.setDaemon(true);
+      return thread;
+    });
+    CompletionService<Result> results = new ExecutorCompletionService<>(pool);
+    for (Path file : files) {
+      results.submit(() -> process(file));
+    }
+    int unformatted = 0;
+    int errors = 0;
+    try {
+      // Results are reported as they complete, so that long runs show progress.
+      for (int i = 0; i < files.size(); i++) {
+        Result result = results.take().get();
+        if (result.error != null) {
+          errors++;
+        } else if (result.replacements > 0) {
+          unformatted++;
+        }
+        report(out, result);
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      System.err.println("formatting failed: " + e);
+      return EXIT_ERROR;
+    } finally {
+      pool.shutdownNow();
+    }
+
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    if (json) {
+      out.println(String.format(Locale.ROOT,
+          "{\"summary\":{\"files\":%d,\"%s\":%d,\"errors\":%d,\"millis\":%d},\"stats\":%s}",
+          files.size(), check ? "unformatted" : "reformatted", unformatted, errors, millis,
+          FormatStats.INSTANCE.toJson()));
+    } else {
+      out.println(String.format(Locale.ROOT, "%s %d files in %d ms: %d %s, %d errors",
+          check ? "checked" : "formatted", files.size(), millis, unformatted,
+          check ? "not formatted" : "changed", errors));
+    }
+    out.flush();
+    if (errors > 0) {
+      return EXIT_ERROR;
+    }
+    return check && unformatted > 0 ? EXIT_UNFORMATTED : EXIT_FORMATTED;
+  }
+
+  /**
+   * Returns the files to format: the given files themselves, and the supported files below the
+   * given directories.
+   */
+  private static List<Path> collectFiles(List<Path> roots) throws IOException {
+    List<Path> files = new ArrayList<>();
+    for (Path root : roots) {
+      if (!Files.isDirectory(root)) {
+        files.add(root);
+        continue;
+      }
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          Path name = dir.getFileName();
+          if (!dir.equals(root) && name != null && name.toString().startsWith(".")) {
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          if (attrs.isRegularFile() && ClangFormatter.isSupported(file.getFileName().toString())) {
+            files.add(file);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+    return files;
+  }
+
+  /** Formats or checks a single file. */
+  private Result process(Path file) {
+    long started = System.nanoTime();
+    Result result = new Result(file);
+    try {
+      CharSequence contents = read(file);
+      if (contents.length() > 0) {
+        // The contents were strictly decoded from the file, so it can be streamed as is.
+        Replacements replacements = ClangFormatter.format(file.toString(), contents,
+            file.toFile(), Utf8OffsetIndex.of(contents), 0,
+            Collections.singletonList(new TextRange(0, contents.length() - 1)));
+        result.replacements = replacements.size();
+        if (!check && !replacements.isEmpty()) {
+          write(file, replacements.applyTo(contents));
+        }
+      }
+    } catch (ClangFormatter.FormatException | IOException e) {
+      result.error = e.getMessage() != null ? e.getMessage() : e.toString();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.error = "interrupted";
+    }
+    result.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    return result;
+  }
+
+  /**
+   * Reads {@code file} through a memory mapping, decoding it as UTF-8 straight from the mapped
+   * pages. Fails on malformed input rather than formatting (and writing back) replacement
+   * characters.
+   */
+  private static CharSequence read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      try {
+        return StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT)
+            .decode(bytes);
+      } catch (CharacterCodingException e) {
+        throw new IOException("not valid UTF-8: " + e, e);
+      }
+    }
+  }
+
+  /**
+   * Replaces {@code file} with {@code contents}, atomically where the file system allows. The file
+   * keeps its permissions, and symbolic links are followed rather than replaced.
+   */
+  private static void write(Path file, String contents) throws IOException {
+    file = file.toRealPath();
+    Path temp = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        writer.write(contents);
+      }
+      // Temp files are created private (0600), copy the original's mode over.
+      PosixFileAttributeView posix =
+          Files.getFileAttributeView(file, PosixFileAttributeView.class);
+      if (posix != null) {
+        PosixFileAttributes attributes = posix.readAttributes();
+        PosixFileAttributeView tempView =
+            Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+        tempView.setPermissions(attributes.permissions());
+        try {
+          tempView.setGroup(attributes.group());
+        } catch (IOException e) {
+          // Not a member of the group; the file gets the default group.
+        }
+      } else {
+        DosFileAttributeView dos = Files.getFileAttributeView(file, DosFileAttributeView.class);
+        if (dos != null) {
+          DosFileAttributes attributes = dos.readAttributes();
+          DosFileAttributeView tempView =
+              Files.getFileAttributeView(temp, DosFileAttributeView.class);
+          tempView.setHidden(attributes.isHidden());
+          tempView.setSystem(attributes.isSystem());
+          tempView.setArchive(attributes.isArchive());
+        }
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private void report(PrintStream out, Result result) {
+    if (json) {
+      out.println(String.format(Locale.ROOT,
+          "{\"file\":%s,\"status\":\"%s\",\"replacements\":%d,\"millis\":%d%s}",
+          jsonString(result.file.toString()), result.status(check), result.replacements,
+          result.millis, result.error == null ? "" : ",\"error\":" + jsonString(result.error)));
+    } else if (result.error != null) {
+      System.err.println(result.file + ": " + result.error);
+    } else if (result.replacements > 0) {
+      out.println(result.file + ": " + (check ? "not formatted" : "formatted") + " ("
+          + result.replacements + " replacements)");
+    }
+  }
+
+  private static String jsonString(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  /** The outcome for a single file. */
+  private static final class Result {
+    final Path file;
+    int replacements = 0;
+    long millis = 0;
+    /** The error message, or null if the file was processed. */
+    String error = null;
+
+    Result(Path file) {
+      this.file = file;
+    }
+
+    String status(boolean check) {
+      if (error != null) {
+        return "error";
+      }
+      if (replacements == 0) {
+        return "formatted";
+      }
+      return check ? "unformatted" : "reformatted";
+    }
+  }
+}
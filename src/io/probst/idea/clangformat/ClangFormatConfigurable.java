@@ -21,6 +21,10 @@ public class ClangFormatConfigurable implements Configurable {
   private JTextField path;
   private JPanel configurationForm;
   private JCheckBox formatOnlyChangedTextCheckBox;
+  private JTextField rangeMergeGap;
+  private JCheckBox formatOnSaveCheckBox;
+  private JTextField formatOnSaveBudget;
+  private JCheckBox formatOnSaveChangedOnlyCheckBox;
 
   @Nls
   @Override
@@ -45,12 +49,27 @@ public class ClangFormatConfigurable implements Configurable {
   public boolean isModified() {
     return !Objects.equals(settings.clangFormatBinary, clangFormatBinary.getText())
         || !Objects.equals(settings.path, path.getText())
-        || !Objects.equals(settings.updateOnlyChangedText, formatOnlyChangedTextCheckBox.isSelected());
+        || !Objects.equals(settings.updateOnlyChangedText, formatOnlyChangedTextCheckBox.isSelected())
+        || !Objects.equals(Integer.toString(settings.rangeMergeGap), rangeMergeGap.getText().trim())
+        || settings.formatOnSave != formatOnSaveCheckBox.isSelected()
+        || !Objects.equals(Integer.toString(settings.formatOnSaveBudgetMillis), formatOnSaveBudget.getText().trim())
+        || settings.formatOnSaveChangedOnly != formatOnSaveChangedOnlyCheckBox.isSelected();
   }
 
   @Override
   public void apply() throws ConfigurationException {
-    settings = Settings.update(clangFormatBinary.getText(), path.getText(), formatOnlyChangedTextCheckBox.isSelected());
+    settings = Settings.update(clangFormatBinary.getText(), path.getText(), formatOnlyChangedTextCheckBox.isSelected(),
+        parseInt(rangeMergeGap, "Range merge distance"), formatOnSaveCheckBox.isSelected(),
+        parseInt(formatOnSaveBudget, "Format on save time budget"),
+        formatOnSaveChangedOnlyCheckBox.isSelected());
+  }
+
+  private static int parseInt(JTextField field, String name) throws ConfigurationException {
+    try {
+      return Integer.parseInt(field.getText().trim());
+    } catch (NumberFormatException e) {
+      throw new ConfigurationException(name + " must be a number: " + field.getText());
+    }
   }
 
   @Override
@@ -58,6 +77,10 @@ public class ClangFormatConfigurable implements Configurable {
     clangFormatBinary.setText(settings.clangFormatBinary);
     path.setText(settings.path);
     formatOnlyChangedTextCheckBox.setSelected(settings.updateOnlyChangedText);
+    rangeMergeGap.setText(Integer.toString(settings.rangeMergeGap));
+    formatOnSaveCheckBox.setSelected(settings.formatOnSave);
+    formatOnSaveBudget.setText(Integer.toString(settings.formatOnSaveBudgetMillis));
+    formatOnSaveChangedOnlyCheckBox.setSelected(settings.formatOnSaveChangedOnly);
   }
 
   @Override
@@ -0,0 +1,109 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.codeInspection.InspectionManager;
+import com.intellij.codeInspection.LocalInspectionTool;
+import com.intellij.codeInspection.LocalQuickFix;
+import com.intellij.codeInspection.ProblemDescriptor;
+import com.intellij.codeInspection.ProblemHighlightType;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Highlights lines that clang-format would change, with a quick fix that applies its changes.
+ *
+ * While editing, the replacements come from {@link FormatChecker}, which checks documents in the
+ * background; this inspection never waits for clang-format itself. While a document is being
+ * re-checked, the previous check's results for unedited lines are shown without a quick fix, as
+ * they were computed for different text. Batch inspections
+ * (Analyze | Inspect Code) report the results of those background checks where they are current,
+ * and skip other files: running clang-format within the inspection's read action would hold up
+ * write actions, and the UI with them, for as long as clang-format takes.
+ */
+public class ClangFormatInspection extends LocalInspectionTool {
+  private static final String MESSAGE = "Not formatted with clang-format";
+
+  @Override
+  public ProblemDescriptor[] checkFile(@NotNull PsiFile file, @NotNull InspectionManager manager,
+                                       boolean isOnTheFly) {
+    VirtualFile virtualFile = file.getVirtualFile();
+    if (virtualFile == null || !ClangFormatBatchAction.isSupported(virtualFile)) {
+      return null;
+    }
+    Document document = PsiDocumentManager.getInstance(file.getProject()).getDocument(file);
+    if (document == null || document.getTextLength() == 0) {
+      return null;
+    }
+    long stamp = document.getModificationStamp();
+    Replacements replacements = FormatChecker.getIfCurrent(document, virtualFile.getPath());
+    // Only replacements computed for exactly this text may be applied.
+    boolean current = replacements != null;
+    if (!current && isOnTheFly) {
+      replacements = FormatChecker.getOrSchedule(file.getProject(), document, virtualFile.getPath());
+    }
+    if (replacements == null || replacements.isEmpty()) {
+      return null;
+    }
+
+    // One problem per run of consecutive changed lines, rather than one per whitespace change.
+    List<ProblemDescriptor> problems = new ArrayList<>();
+    int i = 0;
+    while (i < replacements.size()) {
+      Replacements group = new Replacements();
+      int start = replacements.offset(i);
+      int end = start;
+      do {
+        group.add(replacements.offset(i), replacements.length(i), replacements.value(i));
+        end = Math.max(end, replacements.offset(i) + replacements.length(i));
+        i++;
+      } while (i < replacements.size()
+          && document.getLineNumber(replacements.offset(i)) <= document.getLineNumber(end) + 1);
+      if (start == end) {
+        // An insertion; highlight the character after it so that there is something to see.
+        if (end < document.getTextLength()) {
+          end++;
+        } else {
+          start--;
+        }
+      }
+      LocalQuickFix[] fixes = current
+          ? new LocalQuickFix[] {new ReformatFix(stamp, group)} : LocalQuickFix.EMPTY_ARRAY;
+      problems.add(manager.createProblemDescriptor(file, new TextRange(start, end), MESSAGE,
+          ProblemHighlightType.GENERIC_ERROR_OR_WARNING, isOnTheFly, fixes));
+    }
+    return problems.toArray(ProblemDescriptor.EMPTY_ARRAY);
+  }
+
+  /** Applies clang-format's replacements for one problem, if the document has not changed. */
+  private static class ReformatFix implements LocalQuickFix {
+    private final long stamp;
+    private final Replacements replacements;
+
+    ReformatFix(long stamp, Replacements replacements) {
+      this.stamp = stamp;
+      this.replacements = replacements;
+    }
+
+    @NotNull
+    @Override
+    public String getFamilyName() {
+      return "Reformat with clang-format";
+    }
+
+    @Override
+    public void applyFix(@NotNull Project project, @NotNull ProblemDescriptor descriptor) {
+      PsiFile file = descriptor.getPsiElement().getContainingFile();
+      Document document = PsiDocumentManager.getInstance(project).getDocument(file);
+      if (document != null && document.getModificationStamp() == stamp) {
+        ClangFormatAction.applyReplacements(document, replacements);
+      }
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.util.messages.MessageBusConnection;
+
+/**
+ * Resolves the clang-format {@link Toolchain} in the background when a project opens, so that the
+ * first format does not wait for a login shell or for probing the PATH, and installs the
+ * project's {@link ConfigFileListener}. The first project to open also installs the application's
+ * {@link FormatOnSaveListener}.
+ */
+public class ClangFormatStartupActivity implements StartupActivity, DumbAware {
+  @Override
+  public void runActivity(Project project) {
+    Toolchain.get();
+    MessageBusConnection connection = project.getMessageBus().connect(project);
+    connection.subscribe(VirtualFileManager.VFS_CHANGES, new ConfigFileListener());
+    FormatOnSaveListener.install();
+  }
+}
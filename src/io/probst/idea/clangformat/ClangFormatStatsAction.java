@@ -0,0 +1,30 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.ide.CopyPasteManager;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.ui.Messages;
+
+import java.awt.datatransfer.StringSelection;
+
+/**
+ * Shows the latency statistics collected by {@link FormatStats}, and copies them to the clipboard
+ * as JSON for attaching to bug reports.
+ */
+public class ClangFormatStatsAction extends AnAction implements DumbAware {
+  private static final String[] OPTIONS = {"Copy as JSON", "Reset", "Close"};
+
+  @Override
+  public void actionPerformed(AnActionEvent e) {
+    FormatStats stats = FormatStats.INSTANCE;
+    int choice = Messages.showDialog(e.getData(CommonDataKeys.PROJECT), stats.toText(),
+        "clang-format Statistics", OPTIONS, 0, Messages.getInformationIcon());
+    if (choice == 0) {
+      CopyPasteManager.getInstance().setContents(new StringSelection(stats.toJson()));
+    } else if (choice == 1) {
+      stats.clear();
+    }
+  }
+}
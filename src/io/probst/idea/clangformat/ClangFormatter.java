@@ -0,0 +1,389 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+import com.intellij.util.text.CharArrayUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs clang-format on text and returns its replacements.
+ *
+ * This is the formatting core shared by the IDE actions and {@link ClangFormatCli}. It only
+ * depends on the platform's utility classes ({@link TextRange}), not on the IDE itself: callers
+ * snapshot the text to format, and apply the resulting {@link Replacements} themselves.
+ */
+final class ClangFormatter {
+  static final boolean IS_MAC_OS = System.getProperty("os.name").contains("Mac OS X");
+
+  /** File extensions clang-format knows how to format. */
+  static final Set<String> SUPPORTED_EXTENSIONS = new HashSet<>(Arrays.asList(
+      "c", "cc", "cpp", "cxx", "c++", "h", "hh", "hpp", "hxx", "h++", "inc", "ipp", "m", "mm",
+      "cu", "cuh", "java", "js", "mjs", "ts", "proto", "cs"));
+
+  /** Characters encoded at a time when writing text to clang-format. */
+  private static final int WRITE_CHUNK_CHARS = 16 * 1024;
+  /** Bytes copied at a time when writing a file to clang-format. */
+  private static final int COPY_CHUNK_BYTES = 64 * 1024;
+  /** Error output kept for messages; the rest is read and dropped, so the process never blocks. */
+  static final int MAX_ERROR_BYTES = 16 * 1024;
+
+  private ClangFormatter() {}
+
+  /** Whether clang-format can format a file named {@code fileName}, judging by its extension. */
+  static boolean isSupported(String fileName) {
+    int dot = fileName.lastIndexOf('.');
+    return dot >= 0
+        && SUPPORTED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Runs clang-format on {@code contents} and blocks until its replacements have been parsed.
+   *
+   * The process and its pipes are run by {@link ProcessScheduler}, so this may first wait for a
+   * process slot. Very large ranges of C-family files are formatted by several processes in
+   * parallel, see {@link ShardedFormatter}. Once started, a process has a deadline derived from the
+   * latency of earlier runs, see {@link ProcessScheduler#timeoutNanos}. Failures and successes are
+   * reported to the {@link CircuitBreaker}. If the calling thread is interrupted, the clang-format
+   * process is killed.
+   *
+   * @param filePath The path of the file, used by clang-format to find its configuration.
+   * @param contents The text to format.
+   * @param offsetIndex The byte offset index for {@code contents}.
+   * @param cursor The cursor offset to track through the formatting.
+   * @param ranges The ranges of {@code contents} to format.
+   * @return The replacements clang-format computed, in character offsets.
+   */
+  static Replacements format(String filePath, CharSequence contents, Utf8OffsetIndex offsetIndex,
+                             int cursor, Collection<TextRange> ranges)
+      throws FormatException, InterruptedException {
+    return format(filePath, contents, null, offsetIndex, cursor, ranges);
+  }
+
+  /**
+   * Like {@link #format(String, CharSequence, Utf8OffsetIndex, int, Collection)}, but sends the
+   * bytes of {@code source} to clang-format rather than encoding {@code contents}, if not null.
+   * The caller must make sure that the file holds exactly the UTF-8 encoding of {@code contents};
+   * if its size turns out to differ, formatting fails.
+   */
+  static Replacements format(String filePath, CharSequence contents, File source,
+                             Utf8OffsetIndex offsetIndex, int cursor, Collection<TextRange> ranges)
+      throws FormatException, InterruptedException {
+    ConfigIndex.Config config = ConfigIndex.INSTANCE.forFile(filePath);
+    if (config.disablesFormat) {
+      Replacements none = new Replacements();
+      none.cursor = cursor;
+      return none;
+    }
+    FormatStats.Timer timer = FormatStats.INSTANCE.timer(filePath, offsetIndex.byteLength());
+    long resolve = System.nanoTime();
+    Toolchain toolchain;
+    try {
+      toolchain = Toolchain.get().get();
+    } catch (ExecutionException e) {
+      throw new FormatException("resolving clang-format failed: " + e.getCause().getMessage(), e);
+    }
+    FormatResultCache.Key cacheKey = FormatResultCache.key(filePath, contents, ranges, toolchain);
+    Replacements cached = FormatResultCache.INSTANCE.get(cacheKey, cursor);
+    if (cached != null) {
+      return cached;
+    }
+
+    Replacements replacements = ShardedFormatter.format(filePath, contents, offsetIndex, cursor,
+        ranges, shard -> runClangFormat(toolchain, config, timer, System.nanoTime(), filePath,
+            contents, source, offsetIndex, cursor, shard, false));
+    if (replacements == null) {
+      replacements = runClangFormat(toolchain, config, timer, resolve, filePath, contents, source,
+          offsetIndex, cursor, ranges, true);
+    }
+    FormatResultCache.INSTANCE.put(cacheKey, replacements);
+    return replacements;
+  }
+
+  /**
+   * Runs a single clang-format process over {@code ranges}, see {@link #format}. Shards of a
+   * sharded run pass false for {@code recordLatency}: they only lay out part of the file, so their
+   * latency would understate what formatting all of it takes.
+   */
+  private static Replacements runClangFormat(Toolchain toolchain, ConfigIndex.Config config,
+                                             FormatStats.Timer timer, long resolve, String filePath,
+                                             CharSequence contents, File source,
+                                             Utf8OffsetIndex offsetIndex, int cursor,
+                                             Collection<TextRange> ranges, boolean recordLatency)
+      throws FormatException, InterruptedException {
+    ProcessScheduler scheduler = ProcessScheduler.INSTANCE;
+    ProcessBuilder builder = null;
+    Process formatter;
+    try {
+      // Comment in to debug mystifying missing binaries etc.
+      //      System.out.println("PATH is " + readInput(new ProcessBuilder()
+      //          .command("sh", "-c", "echo $PATH")
+      //          .redirectErrorStream(true)
+      //          .start()
+      //          .getInputStream()));
+      // clang-format counts offsets in UTF-8 bytes, not characters.
+      List<TextRange> byteRanges = new ArrayList<>(ranges.size());
+      for (TextRange range : ranges) {
+        byteRanges.add(new TextRange(offsetIndex.toByteOffset(range.getStartOffset()),
+            offsetIndex.toByteOffset(range.getEndOffset())));
+      }
+      builder = getCommand(toolchain, config, filePath, offsetIndex.toByteOffset(cursor), byteRanges);
+      timer.since(FormatStats.Phase.RESOLVE, resolve);
+      formatter = scheduler.start(builder, timer);
+    } catch (IOException e) {
+      e.printStackTrace();
+      String command = "";
+      if (builder != null) {
+        command = "command: " + builder.command() + " in PATH=" + builder.environment().get("PATH");
+      }
+      throw failure("running clang-format failed - not installed?<br/>"
+              + "Try running 'clang-format' in a shell, or configure its location in the preferences."
+              + "<br/>" + e.getMessage() + "<br/>" + command, e);
+    }
+
+    try {
+      long started = System.nanoTime();
+      long timeout = scheduler.timeoutNanos(offsetIndex.byteLength());
+      long deadline = started + timeout;
+      final OutputStream outputStream = formatter.getOutputStream();
+      // Whether clang-format got the UTF-8 encoding of contents.
+      Future<Boolean> outWritten = scheduler.submitIo(() -> {
+        long write = System.nanoTime();
+        boolean written = true;
+        if (source == null) {
+          writeFileContents(contents, outputStream);
+        } else {
+          written = writeFile(source, outputStream) == offsetIndex.byteLength();
+        }
+        timer.since(FormatStats.Phase.WRITE, write);
+        return written;
+      });
+      final InputStream inputStream = ProcessScheduler.pipe(formatter, formatter.getInputStream());
+      Future<Replacements> replacementsFuture =
+          scheduler.submitIo(() -> Replacements.parse(inputStream));
+      final InputStream errorStream = ProcessScheduler.pipe(formatter, formatter.getErrorStream());
+      Future<String> errorMessage =
+          scheduler.submitIo(() -> readInput(errorStream, MAX_ERROR_BYTES));
+
+      try {
+        if (!outWritten.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+          // Not clang-format's fault, so the circuit breaker is not told.
+          throw new FormatException(source + " changed on disk while formatting, please retry");
+        }
+      } catch (TimeoutException e) {
+        throw failure("timed out writing source file to clang-format after "
+            + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms", e);
+      }
+      if (!formatter.waitFor(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        throw failure("timed out waiting for clang-format to finish after "
+            + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms", null);
+      }
+      long exited = System.nanoTime();
+      timer.since(FormatStats.Phase.PROCESS, started);
+      if (formatter.exitValue() != 0) {
+        throw failure("clang-format failed with exit code " + formatter.exitValue()
+                + ", error: " + errorMessage.get(), null);
+      }
+      long parse = System.nanoTime();
+      Replacements replacements = replacementsFuture.get();
+      replacements.toCharOffsets(offsetIndex);
+      timer.since(FormatStats.Phase.PARSE, parse);
+      if (recordLatency) {
+        scheduler.recordLatency(offsetIndex.byteLength(), exited - started);
+      }
+      CircuitBreaker.INSTANCE.recordSuccess();
+      return replacements;
+    } catch (ExecutionException e) {
+      throw failure(e.getCause().getMessage(), e.getCause());
+    } finally {
+      scheduler.finish(formatter);
+    }
+  }
+
+  /**
+   * Returns the exception for a failed or hung clang-format run, after reporting it to the
+   * {@link CircuitBreaker}. The failure that opens the breaker says so.
+   */
+  private static FormatException failure(String message, Throwable cause) {
+    if (CircuitBreaker.INSTANCE.recordFailure()) {
+      message += "<br/>clang-format failed " + CircuitBreaker.FAILURE_THRESHOLD
+          + " times in a row, automatic formatting is paused for "
+          + CircuitBreaker.INSTANCE.coolDownMillis() / 1000 + " s.";
+    }
+    return new FormatException(message, cause);
+  }
+
+  /**
+   * Records that the text resulting from applying {@code replacements} is formatted in the mapped
+   * {@code ranges}, so that formatting it again needs no clang-format run.
+   */
+  static void rememberFormatted(String filePath, CharSequence formatted,
+                                Collection<TextRange> ranges, Replacements replacements) {
+    Toolchain toolchain = Toolchain.getIfResolved();
+    if (toolchain == null) {
+      return;
+    }
+    List<TextRange> mapped = new ArrayList<>(ranges.size());
+    for (TextRange range : ranges) {
+      mapped.add(new TextRange(replacements.mapOffset(range.getStartOffset()),
+          replacements.mapOffset(range.getEndOffset())));
+    }
+    FormatResultCache.INSTANCE.put(
+        FormatResultCache.key(filePath, formatted, mapped, toolchain), new Replacements());
+  }
+
+  private static ProcessBuilder getCommand(Toolchain toolchain, ConfigIndex.Config config,
+                                           String filePath, int cursor,
+                                           Collection<TextRange> ranges) {
+    ProcessBuilder command = new ProcessBuilder().command(getCommandArguments(
+            toolchain.binary, config.styleArgument(toolchain), filePath, cursor, ranges));
+    if (toolchain.path != null) {
+      command.environment().put("PATH", toolchain.path);
+    }
+    return command;
+  }
+
+  /**
+   * Builds a list of arguments to clang-format
+   */
+  static List<String> getCommandArguments(String clangFormatBinary,
+                                          String filePath,
+                                          int cursor,
+                                          Collection<TextRange> ranges) {
+      return getCommandArguments(clangFormatBinary, "file", filePath, cursor, ranges);
+  }
+
+  /**
+   * Builds a list of arguments to clang-format, with the given {@code -style}.
+   */
+  static List<String> getCommandArguments(String clangFormatBinary,
+                                          String style,
+                                          String filePath,
+                                          int cursor,
+                                          Collection<TextRange> ranges) {
+      List<String> args = new ArrayList<>(Arrays.asList(clangFormatBinary, "-style=" + style,
+              "-output-replacements-xml", "-assume-filename=" + filePath, "-cursor=" + cursor));
+
+      // Add all the format ranges as individual -offset/-length parameters
+      for (TextRange range : ranges) {
+          args.add("-offset=" + range.getStartOffset());
+          args.add("-length=" + range.getLength());
+      }
+
+      return args;
+  }
+
+  /**
+   * Writes {@code contents} to {@code outputStream} as UTF-8, and closes it.
+   *
+   * The text is copied and encoded in chunks, so no copy of the whole text is made. Unpaired
+   * surrogates are written as '?', like Java's UTF-8 writers do and {@link Utf8OffsetIndex}
+   * expects.
+   */
+  static void writeFileContents(CharSequence contents, OutputStream outputStream) {
+    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    char[] chars = new char[WRITE_CHUNK_CHARS];
+    ByteBuffer bytes = ByteBuffer.allocate((int) (WRITE_CHUNK_CHARS * encoder.maxBytesPerChar()));
+    try (OutputStream out = outputStream) {
+      int length = contents.length();
+      int offset = 0;
+      // A high surrogate at the end of a chunk is kept for the next one, to encode the pair.
+      int carried = 0;
+      // Runs at least once, as the encoder must see the end of input before it can be flushed.
+      do {
+        int count = Math.min(chars.length - carried, length - offset);
+        CharArrayUtil.getChars(contents, chars, offset, carried, count);
+        offset += count;
+        CharBuffer in = CharBuffer.wrap(chars, 0, carried + count);
+        encoder.encode(in, bytes, offset == length);
+        carried = in.remaining();
+        if (carried > 0) {
+          chars[0] = chars[in.position()];
+        }
+        out.write(bytes.array(), 0, bytes.position());
+        bytes.clear();
+      } while (offset < length);
+      encoder.flush(bytes);
+      out.write(bytes.array(), 0, bytes.position());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Copies the file {@code source} to {@code outputStream}, and closes it. Returns the number of
+   * bytes copied.
+   */
+  static long writeFile(File source, OutputStream outputStream) throws IOException {
+    byte[] buffer = new byte[COPY_CHUNK_BYTES];
+    long copied = 0;
+    try (InputStream in = new FileInputStream(source); OutputStream out = outputStream) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        copied += read;
+      }
+    }
+    return copied;
+  }
+
+  static String readInput(InputStream input) throws IOException {
+    return readInput(input, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Reads {@code input} to its end and returns its first {@code maxBytes} as UTF-8 text, noting how
+   * much was dropped.
+   */
+  static String readInput(InputStream input, int maxBytes) throws IOException {
+    try (InputStream in = input) {
+      ByteArrayOutputStream kept = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      long dropped = 0;
+      int read;
+      while ((read = in.read(buf)) != -1) {
+        int keep = Math.min(read, maxBytes - kept.size());
+        kept.write(buf, 0, keep);
+        dropped += read - keep;
+      }
+      String text = new String(kept.toByteArray(), StandardCharsets.UTF_8);
+      return dropped == 0 ? text : text + "... (" + dropped + " more bytes)";
+    }
+  }
+
+  /**
+   * Signals that running clang-format failed; the message is suitable for showing to the user, see
+   * {@link ClangFormatAction#showError}.
+   */
+  static class FormatException extends Exception {
+    FormatException(String message) {
+      super(message);
+    }
+
+    FormatException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/** Clears the {@link ConfigIndex} whenever configuration files change in the VFS. */
+class ConfigFileListener implements BulkFileListener {
+  @Override
+  public void before(@NotNull List<? extends VFileEvent> events) {}
+
+  @Override
+  public void after(@NotNull List<? extends VFileEvent> events) {
+    for (VFileEvent event : events) {
+      if (affectsConfig(event)) {
+        ConfigIndex.INSTANCE.clear();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Whether {@code event} may change the configuration of some directory: it touches a
+   * configuration file, or renames, moves or deletes a directory that may contain one.
+   */
+  private static boolean affectsConfig(VFileEvent event) {
+    if (ConfigIndex.isConfigFile(event.getPath())) {
+      return true;
+    }
+    if (event instanceof VFilePropertyChangeEvent) {
+      VFilePropertyChangeEvent change = (VFilePropertyChangeEvent) event;
+      if (!VirtualFile.PROP_NAME.equals(change.getPropertyName())) {
+        return false;
+      }
+      if (ConfigIndex.isConfigFile(String.valueOf(change.getNewValue()))) {
+        return true;
+      }
+    }
+    VirtualFile file = event.getFile();
+    return file != null && file.isDirectory();
+  }
+}
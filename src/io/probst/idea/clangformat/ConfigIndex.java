@@ -0,0 +1,200 @@
+package io.probst.idea.clangformat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps directories to the clang-format configuration that applies to files in them, found the way
+ * {@code -style=file} finds it: the closest {@code .clang-format} or {@code _clang-format} in the
+ * directory or its parents.
+ *
+ * Lookups are cached per directory, together with a hash of the configuration's contents. The
+ * cache is cleared when the VFS reports changes to configuration files, or to directories that may
+ * contain them (see {@link ConfigFileListener}). As configuration files above the project roots are
+ * not covered by VFS events, cached entries are also checked against the size and modification
+ * time of the directory's configuration file at most every {@link #REVALIDATE_MILLIS}.
+ */
+final class ConfigIndex {
+  static final ConfigIndex INSTANCE = new ConfigIndex();
+
+  private static final String[] FILE_NAMES = {".clang-format", "_clang-format"};
+  private static final Config NONE = new Config(null, "", false, false);
+  private static final Pattern DISABLE_FORMAT =
+      Pattern.compile("^DisableFormat:\\s*true\\s*(#.*)?$", Pattern.MULTILINE);
+  private static final Pattern INHERIT_PARENT =
+      Pattern.compile("^BasedOnStyle:\\s*InheritParentConfig\\b", Pattern.MULTILINE);
+  private static final Pattern LANGUAGE = Pattern.compile("^Language:", Pattern.MULTILINE);
+  private static final Pattern DOCUMENT_START = Pattern.compile("^---", Pattern.MULTILINE);
+
+  static final long REVALIDATE_MILLIS = 1000;
+
+  private final ConcurrentMap<String, Entry> byDirectory = new ConcurrentHashMap<>();
+
+  /** The effective configuration for a directory. */
+  static final class Config {
+    /** The configuration file, or null if there is none and clang-format uses its fallback style. */
+    final File file;
+    /** Identifies the configuration file and its contents, including inherited configurations. */
+    final String fingerprint;
+    /** Whether the configuration sets {@code DisableFormat: true} for all languages. */
+    final boolean disablesFormat;
+    /** Whether the configuration is based on the parent directory's ({@code InheritParentConfig}). */
+    final boolean inheritsParent;
+
+    Config(File file, String fingerprint, boolean disablesFormat, boolean inheritsParent) {
+      this.file = file;
+      this.fingerprint = fingerprint;
+      this.disablesFormat = disablesFormat;
+      this.inheritsParent = inheritsParent;
+    }
+
+    /**
+     * Returns the {@code -style} argument for {@code toolchain}. clang-format 14 and later can be
+     * pointed at the configuration file directly, which spares it the search through the parent
+     * directories on every run.
+     */
+    String styleArgument(Toolchain toolchain) {
+      if (file != null && !inheritsParent && toolchain.majorVersion >= 14) {
+        return "file:" + file.getPath();
+      }
+      return "file";
+    }
+  }
+
+  /** A cached lookup, with what it was derived from. */
+  private static final class Entry {
+    final Config config;
+    /** Name, size and modification time of the directory's configuration file, if any. */
+    final String stamp;
+    /** The parent directory's configuration this one depends on, or null. */
+    final Config parent;
+    volatile long checked;
+
+    Entry(Config config, String stamp, Config parent, long checked) {
+      this.config = config;
+      this.stamp = stamp;
+      this.parent = parent;
+      this.checked = checked;
+    }
+  }
+
+  /** Whether {@code path} names a configuration file. */
+  static boolean isConfigFile(String path) {
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    for (String configName : FILE_NAMES) {
+      if (configName.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void clear() {
+    byDirectory.clear();
+  }
+
+  /** Returns the configuration clang-format uses for the file at {@code filePath}. */
+  Config forFile(String filePath) {
+    File directory = new File(filePath).getAbsoluteFile().getParentFile();
+    return directory == null ? NONE : forDirectory(directory);
+  }
+
+  private Config forDirectory(File directory) {
+    long now = System.nanoTime();
+    Entry entry = byDirectory.get(directory.getPath());
+    if (entry != null && now - entry.checked < TimeUnit.MILLISECONDS.toNanos(REVALIDATE_MILLIS)) {
+      return entry.config;
+    }
+    File file = configFile(directory);
+    String stamp = file == null ? "" : file.getName() + '@' + file.lastModified() + '/'
+        + file.length();
+    if (entry != null && entry.stamp.equals(stamp)
+        && (entry.parent == null || entry.parent == forDirectory(directory.getParentFile()))) {
+      entry.checked = now;
+      return entry.config;
+    }
+    entry = load(directory, file, stamp, now);
+    byDirectory.put(directory.getPath(), entry);
+    return entry.config;
+  }
+
+  private static File configFile(File directory) {
+    for (String name : FILE_NAMES) {
+      File file = new File(directory, name);
+      if (file.isFile()) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+  private Entry load(File directory, File file, String stamp, long now) {
+    File parentDirectory = directory.getParentFile();
+    if (file == null) {
+      Config parent = parentDirectory == null ? null : forDirectory(parentDirectory);
+      return new Entry(parent == null ? NONE : parent, stamp, parent, now);
+    }
+    Config config = parse(directory, file);
+    Config parent = config.inheritsParent && parentDirectory != null
+        ? forDirectory(parentDirectory) : null;
+    return new Entry(config, stamp, parent, now);
+  }
+
+  private Config parse(File directory, File file) {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(file.toPath());
+    } catch (IOException e) {
+      // clang-format will report the problem; just don't share results with readable versions.
+      return new Config(file, file.getPath() + "@unreadable@" + file.lastModified(), false, false);
+    }
+    String text = new String(bytes, StandardCharsets.UTF_8);
+    String fingerprint = file.getPath() + '@' + sha256(bytes);
+    if (INHERIT_PARENT.matcher(text).find()) {
+      File parent = directory.getParentFile();
+      if (parent != null) {
+        fingerprint += '|' + forDirectory(parent).fingerprint;
+      }
+      return new Config(file, fingerprint, false, true);
+    }
+    // Configurations for specific languages may disable formatting for some languages only, so
+    // files are only skipped if the configuration is a single document for all languages.
+    boolean disablesFormat = DISABLE_FORMAT.matcher(text).find()
+        && !LANGUAGE.matcher(text).find()
+        && !hasSeveralDocuments(text);
+    return new Config(file, fingerprint, disablesFormat, false);
+  }
+
+  private static boolean hasSeveralDocuments(String text) {
+    Matcher matcher = DOCUMENT_START.matcher(text);
+    int documents = 0;
+    while (matcher.find()) {
+      // A leading "---" starts the first document, any other one starts another.
+      if (++documents > 1 || !text.substring(0, matcher.start()).trim().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String sha256(byte[] bytes) {
+    try {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-256 is not available", e);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Runs at most one clang-format request per document.
+ *
+ * A new request for a document supersedes the one in flight: the old request's process is killed,
+ * and if the document has not changed since the old request took its snapshot, its ranges are
+ * merged into the new request, so that one invocation formats both. Results are only applied if
+ * the document is still exactly the text that was formatted.
+ *
+ * All methods must be called on the event dispatch thread.
+ */
+final class DocumentFormatScheduler {
+  private static final Key<Job> CURRENT_JOB = Key.create("clangformat.currentJob");
+  private static final Key<Utf8OffsetIndex> OFFSET_INDEX = Key.create("clangformat.utf8index");
+  /** Below this size, encoding the document is cheaper than checking the file on disk. */
+  private static final int DISK_SOURCE_MIN_BYTES = 64 * 1024;
+
+  private DocumentFormatScheduler() {}
+
+  /**
+   * Formats {@code ranges} of the current contents of {@code document} in the background, and
+   * calls {@code apply} with the replacements within a write command, unless the request is
+   * superseded or the document changed in the meantime.
+   */
+  static void submit(Project project, Document document, String filePath, int cursor,
+                     Collection<TextRange> ranges, Consumer<Replacements> apply) {
+    submit(project, document, filePath, cursor, () -> ranges, apply);
+  }
+
+  /**
+   * Like {@link #submit(Project, Document, String, int, Collection, Consumer)}, but computes the
+   * ranges to format in a background read action, as computing them may be expensive.
+   */
+  static void submit(Project project, Document document, String filePath, int cursor,
+                     Callable<Collection<TextRange>> ranges, Consumer<Replacements> apply) {
+    ApplicationManager.getApplication().assertIsDispatchThread();
+    long stamp = document.getModificationStamp();
+    Callable<Collection<TextRange>> merged = ranges;
+    Job previous = document.getUserData(CURRENT_JOB);
+    if (previous != null) {
+      previous.future.cancel(true);
+      if (previous.stamp == stamp) {
+        Callable<Collection<TextRange>> previousRanges = previous.rangeSource;
+        merged = () -> union(previousRanges.call(), ranges.call());
+      }
+    }
+    Job job = new Job(project, document, filePath, stamp, cursor, merged, apply);
+    document.putUserData(CURRENT_JOB, job);
+    job.future = ApplicationManager.getApplication().executeOnPooledThread(job::run);
+  }
+
+  /**
+   * Returns the {@link Utf8OffsetIndex} for the current contents of {@code document}. The index is
+   * kept on the document and reused until the document changes.
+   */
+  static Utf8OffsetIndex offsetIndex(Document document) {
+    long stamp = document.getModificationStamp();
+    Utf8OffsetIndex index = document.getUserData(OFFSET_INDEX);
+    if (index == null || index.modificationStamp() != stamp) {
+      index = Utf8OffsetIndex.of(document.getImmutableCharSequence(), stamp);
+      document.putUserData(OFFSET_INDEX, index);
+    }
+    return index;
+  }
+
+  /**
+   * Returns the file on disk if it holds exactly the UTF-8 encoding of {@code document}, so that
+   * clang-format can be fed from the file rather than from the re-encoded text, or null. This is
+   * the case for saved documents of local UTF-8 files without BOM and with LF line separators whose
+   * size and time stamp on disk still match the VFS. Must be called in a read action.
+   */
+  static File diskSource(Document document, Utf8OffsetIndex offsetIndex) {
+    if (offsetIndex.byteLength() < DISK_SOURCE_MIN_BYTES) {
+      return null;
+    }
+    FileDocumentManager documentManager = FileDocumentManager.getInstance();
+    VirtualFile file = documentManager.getFile(document);
+    if (file == null || !file.isInLocalFileSystem() || documentManager.isDocumentUnsaved(document)
+        || !StandardCharsets.UTF_8.equals(file.getCharset()) || file.getBOM() != null
+        || !"\n".equals(file.getDetectedLineSeparator())
+        || file.getLength() != offsetIndex.byteLength()) {
+      return null;
+    }
+    File ioFile = VfsUtilCore.virtualToIoFile(file);
+    if (ioFile.length() != file.getLength() || ioFile.lastModified() != file.getTimeStamp()) {
+      return null; // Changed on disk, but not yet refreshed.
+    }
+    return ioFile;
+  }
+
+  /** Returns the union of two range sets, sorted, with overlapping or touching ranges merged. */
+  static List<TextRange> union(Collection<TextRange> a, Collection<TextRange> b) {
+    List<TextRange> all = new ArrayList<>(a.size() + b.size());
+    all.addAll(a);
+    all.addAll(b);
+    return RangeCoalescer.coalesce(all, 0, Integer.MAX_VALUE);
+  }
+
+  private static class Job {
+    final Project project;
+    final Document document;
+    final String filePath;
+    final long stamp;
+    final int cursor;
+    final Callable<Collection<TextRange>> rangeSource;
+    final Consumer<Replacements> apply;
+    final CharSequence contents;
+    final Utf8OffsetIndex offsetIndex;
+    final long created = System.nanoTime();
+    volatile Future<?> future;
+
+    Job(Project project, Document document, String filePath, long stamp, int cursor,
+        Callable<Collection<TextRange>> rangeSource, Consumer<Replacements> apply) {
+      this.project = project;
+      this.document = document;
+      this.filePath = filePath;
+      this.stamp = stamp;
+      this.cursor = cursor;
+      this.rangeSource = rangeSource;
+      this.apply = apply;
+      this.contents = document.getImmutableCharSequence();
+      this.offsetIndex = offsetIndex(document);
+    }
+
+    void run() {
+      Collection<TextRange> ranges;
+      Replacements replacements;
+      File[] source = new File[1];
+      try {
+        ranges = ReadAction.compute(() -> {
+          if (document.getModificationStamp() != stamp) {
+            return null;
+          }
+          source[0] = diskSource(document, offsetIndex);
+          return rangeSource.call();
+        });
+        if (ranges == null || ranges.isEmpty()) {
+          // The document changed before the ranges were known, or there is nothing to format.
+          finish();
+          return;
+        }
+        replacements =
+            ClangFormatter.format(filePath, contents, source[0], offsetIndex, cursor, ranges);
+      } catch (InterruptedException e) {
+        // Superseded by a newer request.
+        finish();
+        return;
+      } catch (ClangFormatter.FormatException e) {
+        finish();
+        ClangFormatAction.showError(project, e.getMessage());
+        return;
+      } catch (Exception e) {
+        finish();
+        ClangFormatAction.showError(project, "computing ranges to format failed: " + e);
+        return;
+      }
+      if (replacements.isEmpty()) {
+        finish();
+        return; // Already formatted, don't create an empty undoable command.
+      }
+      FormatStats.Timer timer = FormatStats.INSTANCE.timer(filePath, offsetIndex.byteLength());
+      // The text right after applying; the user may type again as soon as the command ends.
+      CharSequence[] formatted = {null};
+      WriteCommandAction.runWriteCommandAction(project, () -> {
+        if (isCurrent() && document.getModificationStamp() == stamp) {
+          long start = System.nanoTime();
+          apply.accept(replacements);
+          formatted[0] = document.getImmutableCharSequence();
+          timer.since(FormatStats.Phase.APPLY, start);
+          timer.since(FormatStats.Phase.TOTAL, created);
+        }
+        if (isCurrent()) {
+          document.putUserData(CURRENT_JOB, null);
+        }
+      });
+      if (formatted[0] != null) {
+        ClangFormatter.rememberFormatted(filePath, formatted[0], ranges, replacements);
+      }
+    }
+
+    private boolean isCurrent() {
+      return document.getUserData(CURRENT_JOB) == this;
+    }
+
+    /** Forgets this job if it is still the current one, without applying anything. */
+    private void finish() {
+      ApplicationManager.getApplication().invokeLater(() -> {
+        if (isCurrent()) {
+          document.putUserData(CURRENT_JOB, null);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the replacements clang-format would make to open documents, for
+ * {@link ClangFormatInspection}.
+ *
+ * Checks run in the background once a document has not changed for {@link #DEBOUNCE_MILLIS}.
+ * After the first check of a document, only the lines edited since the previous check are
+ * formatted, and the previous check's replacements elsewhere are kept, unless the
+ * {@code .clang-format} configuration changed in the meantime. At most
+ * {@link #MAX_CHECKS_PER_PROJECT} checks run at a time per project, so that a large set of open
+ * editors does not start dozens of clang-format processes. No checks run while the
+ * {@link CircuitBreaker} is open.
+ */
+final class FormatChecker {
+  static final long DEBOUNCE_MILLIS = 500;
+  static final int MAX_CHECKS_PER_PROJECT =
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  private static final Key<Result> RESULT = Key.create("clangformat.checkResult");
+  private static final Key<Pending> PENDING = Key.create("clangformat.pendingCheck");
+  private static final Key<Semaphore> PROJECT_CHECKS = Key.create("clangformat.projectChecks");
+
+  private static final ScheduledExecutorService DEBOUNCE =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "clang-format check debounce");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private FormatChecker() {}
+
+  /** The replacements clang-format computed for a snapshot of a document. */
+  private static final class Result {
+    final CharSequence contents;
+    final long stamp;
+    final Toolchain toolchain;
+    /** The {@link ConfigIndex.Config#fingerprint} of the configuration used. */
+    final String config;
+    final Replacements replacements;
+
+    Result(CharSequence contents, long stamp, Toolchain toolchain, String config,
+           Replacements replacements) {
+      this.contents = contents;
+      this.stamp = stamp;
+      this.toolchain = toolchain;
+      this.config = config;
+      this.replacements = replacements;
+    }
+  }
+
+  /** A scheduled or running check of a document. */
+  private static final class Pending {
+    final long stamp;
+    final String config;
+    Future<?> timer;
+    Future<?> check;
+
+    Pending(long stamp, String config) {
+      this.stamp = stamp;
+      this.config = config;
+    }
+
+    void cancel() {
+      timer.cancel(false);
+      if (check != null) {
+        check.cancel(true); // Kills the clang-format process for the outdated text.
+      }
+    }
+  }
+
+  /**
+   * Returns the replacements clang-format would make to {@code document}, in offsets of its current
+   * contents. If the document changed since it was last checked, schedules a check, and returns
+   * the previous result for the lines that have not been edited since, or null if the document has
+   * not been checked yet or its configuration changed. Must be called in a read action.
+   */
+  static Replacements getOrSchedule(Project project, Document document, String filePath) {
+    long stamp = document.getModificationStamp();
+    String config = ConfigIndex.INSTANCE.forFile(filePath).fingerprint;
+    Result result = document.getUserData(RESULT);
+    if (result != null && result.stamp == stamp && result.config.equals(config)) {
+      return result.replacements;
+    }
+    schedule(project, document, filePath, stamp, config);
+    if (result == null || !result.config.equals(config)) {
+      return null;
+    }
+    CharSequence contents = document.getImmutableCharSequence();
+    TextRange changed = changedLines(result.contents, contents);
+    return changed == null ? result.replacements : retained(result, contents, changed);
+  }
+
+  /**
+   * Returns the replacements of the last check of {@code document} if it is still current, or
+   * null. Never schedules a check.
+   */
+  static Replacements getIfCurrent(Document document, String filePath) {
+    Result result = document.getUserData(RESULT);
+    if (result == null || result.stamp != document.getModificationStamp()
+        || !result.config.equals(ConfigIndex.INSTANCE.forFile(filePath).fingerprint)) {
+      return null;
+    }
+    return result.replacements;
+  }
+
+  private static synchronized void schedule(Project project, Document document, String filePath,
+                                            long stamp, String config) {
+    Pending pending = document.getUserData(PENDING);
+    if (pending != null) {
+      if (pending.stamp == stamp && pending.config.equals(config)) {
+        return;
+      }
+      pending.cancel();
+    }
+    Pending next = new Pending(stamp, config);
+    document.putUserData(PENDING, next);
+    next.timer = DEBOUNCE.schedule(() -> {
+      synchronized (FormatChecker.class) {
+        if (document.getUserData(PENDING) == next) {
+          next.check = ApplicationManager.getApplication().executeOnPooledThread(
+              () -> check(project, document, filePath, next));
+        }
+      }
+    }, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private static void check(Project project, Document document, String filePath, Pending pending) {
+    Semaphore checks = projectChecks(project);
+    try {
+      checks.acquire();
+    } catch (InterruptedException e) {
+      return; // Superseded while waiting.
+    }
+    try {
+      CharSequence[] contents = new CharSequence[1];
+      Utf8OffsetIndex[] offsetIndex = new Utf8OffsetIndex[1];
+      File[] source = new File[1];
+      boolean current = ReadAction.compute(() -> {
+        if (project.isDisposed() || document.getModificationStamp() != pending.stamp) {
+          return false;
+        }
+        contents[0] = document.getImmutableCharSequence();
+        offsetIndex[0] = DocumentFormatScheduler.offsetIndex(document);
+        source[0] = DocumentFormatScheduler.diskSource(document, offsetIndex[0]);
+        return true;
+      });
+      if (!current || contents[0].length() == 0 || !CircuitBreaker.INSTANCE.allowAutomatic()) {
+        return;
+      }
+      String config = ConfigIndex.INSTANCE.forFile(filePath).fingerprint;
+      Result previous = document.getUserData(RESULT);
+      Replacements replacements;
+      if (previous != null && previous.toolchain == Toolchain.getIfResolved()
+          && previous.config.equals(config)) {
+        TextRange changed = changedLines(previous.contents, contents[0]);
+        if (changed == null) {
+          // Changed and changed back, e.g. by undo.
+          replacements = previous.replacements;
+        } else {
+          Replacements formatted = ClangFormatter.format(filePath, contents[0], source[0],
+              offsetIndex[0], 0, Collections.singletonList(changed));
+          replacements = merge(retained(previous, contents[0], changed), formatted);
+        }
+      } else {
+        replacements = ClangFormatter.format(filePath, contents[0], source[0], offsetIndex[0], 0,
+            Collections.singletonList(new TextRange(0, contents[0].length() - 1)));
+      }
+      document.putUserData(RESULT,
+          new Result(contents[0], pending.stamp, Toolchain.getIfResolved(), config, replacements));
+      ApplicationManager.getApplication().invokeLater(() -> {
+        PsiFile psiFile = PsiDocumentManager.getInstance(project).getPsiFile(document);
+        if (psiFile != null) {
+          DaemonCodeAnalyzer.getInstance(project).restart(psiFile);
+        }
+      }, project.getDisposed());
+    } catch (InterruptedException e) {
+      // Superseded by a newer check.
+    } catch (ClangFormatter.FormatException e) {
+      // Formatting explicitly reports errors; the inspection stays quiet rather than notifying
+      // on every pause in typing.
+    } finally {
+      checks.release();
+      synchronized (FormatChecker.class) {
+        if (document.getUserData(PENDING) == pending) {
+          document.putUserData(PENDING, null);
+        }
+      }
+    }
+  }
+
+  private static synchronized Semaphore projectChecks(Project project) {
+    Semaphore checks = project.getUserData(PROJECT_CHECKS);
+    if (checks == null) {
+      checks = new Semaphore(MAX_CHECKS_PER_PROJECT);
+      project.putUserData(PROJECT_CHECKS, checks);
+    }
+    return checks;
+  }
+
+  /**
+   * Returns the lines of {@code current} that differ from {@code previous}, or null if they are
+   * equal. All edits in between are covered by one region, from the first to the last changed
+   * character.
+   */
+  static TextRange changedLines(CharSequence previous, CharSequence current) {
+    int common = Math.min(previous.length(), current.length());
+    int prefix = 0;
+    while (prefix < common && previous.charAt(prefix) == current.charAt(prefix)) {
+      prefix++;
+    }
+    if (prefix == previous.length() && prefix == current.length()) {
+      return null;
+    }
+    int suffix = 0;
+    while (suffix < common - prefix && previous.charAt(previous.length() - 1 - suffix)
+        == current.charAt(current.length() - 1 - suffix)) {
+      suffix++;
+    }
+    int start = prefix;
+    while (start > 0 && current.charAt(start - 1) != '\n') {
+      start--;
+    }
+    int end = current.length() - suffix;
+    while (end < current.length() - 1 && current.charAt(end) != '\n') {
+      end++;
+    }
+    return new TextRange(start, Math.max(start, Math.min(end, current.length() - 1)));
+  }
+
+  /**
+   * Returns the replacements of {@code result} outside of the {@code changed} lines of
+   * {@code contents}, moved to their offsets in {@code contents}.
+   */
+  private static Replacements retained(Result result, CharSequence contents, TextRange changed) {
+    int delta = contents.length() - result.contents.length();
+    Replacements previous = result.replacements;
+    Replacements retained = new Replacements();
+    for (int i = 0; i < previous.size(); i++) {
+      int offset = previous.offset(i);
+      int end = offset + previous.length(i);
+      if (end < changed.getStartOffset()) {
+        retained.add(offset, previous.length(i), previous.value(i));
+      } else if (offset > changed.getEndOffset() - delta) {
+        retained.add(offset + delta, previous.length(i), previous.value(i));
+      }
+    }
+    return retained;
+  }
+
+  /**
+   * Merges two sets of replacements in document order. Replacements of {@code retained} that
+   * overlap a replacement of {@code formatted} are dropped.
+   */
+  static Replacements merge(Replacements retained, Replacements formatted) {
+    Replacements merged = new Replacements();
+    int r = 0;
+    for (int f = 0; f < formatted.size(); f++) {
+      int start = formatted.offset(f);
+      int end = start + formatted.length(f);
+      for (; r < retained.size() && retained.offset(r) <= end; r++) {
+        if (retained.offset(r) + retained.length(r) < start) {
+          merged.add(retained.offset(r), retained.length(r), retained.value(r));
+        }
+      }
+      merged.add(start, formatted.length(f), formatted.value(f));
+    }
+    for (; r < retained.size(); r++) {
+      merged.add(retained.offset(r), retained.length(r), retained.value(r));
+    }
+    return merged;
+  }
+}
@@ -0,0 +1,252 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.AppTopics;
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileDocumentManagerAdapter;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vcs.ProjectLevelVcsManager;
+import com.intellij.openapi.vcs.changes.ChangeListManager;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Formats documents of open projects when they are saved, if enabled in the {@link Settings}:
+ * either whole documents, or (by default) the lines changed compared to VCS. There is one listener
+ * for the application, which formats each document in the context of the project containing it.
+ *
+ * Saving may happen within a write action, so nothing here diffs against VCS or waits for a read
+ * action: the changed lines are taken from the line status tracker, which keeps them up to date
+ * while editing. Documents whose changed lines are not known yet are saved as they are.
+ *
+ * "Save All" formats all unsaved documents in parallel before any of them is written. Saving waits
+ * at most {@link Settings#formatOnSaveBudgetMillis} for clang-format; documents that are not
+ * formatted by then are saved as they are, and their clang-format processes are killed. The results
+ * are applied in a single command. While the {@link CircuitBreaker} is open, documents are saved
+ * without formatting.
+ */
+class FormatOnSaveListener extends FileDocumentManagerAdapter {
+  /** The modification stamp of a document after it was handled by a "Save All". */
+  private static final Key<Long> HANDLED_STAMP = Key.create("clangformat.formatOnSaveStamp");
+
+  private static final ExecutorService WORKERS = createWorkers();
+  private static final AtomicBoolean INSTALLED = new AtomicBoolean();
+
+  private FormatOnSaveListener() {}
+
+  /** Subscribes the listener to document saves of the application, unless it already is. */
+  static void install() {
+    if (INSTALLED.compareAndSet(false, true)) {
+      Application application = ApplicationManager.getApplication();
+      application.getMessageBus().connect(application)
+          .subscribe(AppTopics.FILE_DOCUMENT_SYNC, new FormatOnSaveListener());
+    }
+  }
+
+  private static ExecutorService createWorkers() {
+    int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), r -> {
+          Thread thread = new Thread(r, "clang-format on save");
+          thread.setDaemon(true);
+          return thread;
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Marks {@code document} as formatted in its current state, so that saving it does not format it
+   * again.
+   */
+  static void markHandled(Document document) {
+    document.putUserData(HANDLED_STAMP, document.getModificationStamp());
+  }
+
+  private static boolean isHandled(Document document) {
+    Long handled = document.getUserData(HANDLED_STAMP);
+    return handled != null && handled == document.getModificationStamp();
+  }
+
+  @Override
+  public void beforeAllDocumentsSaving() {
+    Settings settings = Settings.get();
+    if (!settings.formatOnSave) {
+      return;
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.formatOnSaveBudgetMillis);
+    List<Request> requests = new ArrayList<>();
+    for (Document document : FileDocumentManager.getInstance().getUnsavedDocuments()) {
+      if (isHandled(document)) {
+        continue;
+      }
+      Request request = createRequest(document, settings);
+      if (request != null) {
+        request.future = WORKERS.submit(request::format);
+        requests.add(request);
+      }
+    }
+    finish(requests, deadline);
+  }
+
+  @Override
+  public void beforeDocumentSaving(Document document) {
+    Settings settings = Settings.get();
+    if (!settings.formatOnSave || isHandled(document)) {
+      return;
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.formatOnSaveBudgetMillis);
+    Request request = createRequest(document, settings);
+    if (request == null) {
+      return;
+    }
+    request.future = WORKERS.submit(request::format);
+    finish(Collections.singletonList(request), deadline);
+  }
+
+  /** Returns a request to format {@code document}, or null if it is not to be formatted. */
+  private static Request createRequest(Document document, Settings settings) {
+    VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+    if (file == null || !ClangFormatBatchAction.isSupported(file)
+        || document.getTextLength() == 0) {
+      return null;
+    }
+    Project project = projectContaining(file);
+    if (project == null) {
+      return null;
+    }
+    Collection<TextRange> ranges = rangesToFormat(project, document, file, settings);
+    if (ranges == null || ranges.isEmpty() || !CircuitBreaker.INSTANCE.allowAutomatic()) {
+      return null;
+    }
+    return new Request(project, document, file, ranges);
+  }
+
+  /** Returns the open project whose content contains {@code file}, or null. */
+  private static Project projectContaining(VirtualFile file) {
+    for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+      if (!project.isDisposed()
+          && ProjectFileIndex.SERVICE.getInstance(project).isInContent(file)) {
+        return project;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the ranges of {@code document} to format, or null if the changed lines are to be
+   * formatted but are not known, e.g. because the line status tracker is not ready yet.
+   */
+  private static Collection<TextRange> rangesToFormat(Project project, Document document,
+                                                      VirtualFile file, Settings settings) {
+    if (!settings.formatOnSaveChangedOnly
+        || ProjectLevelVcsManager.getInstance(project).getVcsFor(file) == null
+        || ChangeListManager.getInstance(project).isUnversioned(file)) {
+      return Collections.singletonList(new TextRange(0, document.getTextLength() - 1));
+    }
+    Collection<TextRange> ranges = ClangFormatAutoAction.getLineStatusRanges(project, document);
+    return ranges == null
+        ? null : RangeCoalescer.coalesce(ranges, settings.rangeMergeGap, RangeCoalescer.MAX_RANGES);
+  }
+
+  /**
+   * Waits for the requests until {@code deadline}, applies the results that are ready in one
+   * command and cancels the others.
+   */
+  private static void finish(List<Request> requests, long deadline) {
+    int timedOut = 0;
+    Project timedOutProject = null;
+    List<Request> ready = new ArrayList<>(requests.size());
+    for (Request request : requests) {
+      Replacements replacements = null;
+      try {
+        replacements = request.future.get(Math.max(0, deadline - System.nanoTime()),
+            TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        timedOut++;
+        timedOutProject = request.project;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        ClangFormatAction.showError(request.project, e.getCause().getMessage());
+      } finally {
+        request.future.cancel(true);
+      }
+      if (replacements != null && !replacements.isEmpty()) {
+        request.replacements = replacements;
+        ready.add(request);
+      }
+    }
+    if (!ready.isEmpty()) {
+      // Files of several projects are saved together, the command then belongs to none of them.
+      Project project = ready.get(0).project;
+      for (Request request : ready) {
+        if (request.project != project) {
+          project = null;
+        }
+      }
+      WriteCommandAction.runWriteCommandAction(project, () -> {
+        for (Request request : ready) {
+          if (request.document.getModificationStamp() == request.stamp) {
+            ClangFormatAction.applyReplacements(request.document, request.replacements);
+          }
+        }
+      });
+    }
+    for (Request request : requests) {
+      markHandled(request.document);
+    }
+    if (timedOut > 0) {
+      ClangFormatAction.showError(timedOutProject, "clang-format took longer than "
+          + Settings.get().formatOnSaveBudgetMillis + " ms, saved " + timedOut
+          + " file(s) without formatting.");
+    }
+  }
+
+  /** A document to format, snapshotted at the time of saving. */
+  private static class Request {
+    final Project project;
+    final Document document;
+    final VirtualFile file;
+    final long stamp;
+    final CharSequence contents;
+    final Collection<TextRange> ranges;
+    Future<Replacements> future;
+    /** The result, if it was ready in time. */
+    Replacements replacements;
+
+    Request(Project project, Document document, VirtualFile file, Collection<TextRange> ranges) {
+      this.project = project;
+      this.document = document;
+      this.file = file;
+      this.stamp = document.getModificationStamp();
+      this.contents = document.getImmutableCharSequence();
+      this.ranges = ranges;
+    }
+
+    /** Formats the ranges of the snapshot. */
+    Replacements format() throws ClangFormatter.FormatException, InterruptedException {
+      return ClangFormatter.format(file.getPath(), contents, Utf8OffsetIndex.of(contents), 0,
+          ranges);
+    }
+  }
+}
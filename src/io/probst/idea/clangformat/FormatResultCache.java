@@ -0,0 +1,168 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the replacements clang-format produced for a given input, so that formatting text that
+ * is already formatted (or was formatted before) does not spawn another process.
+ *
+ * Entries are keyed by a digest of everything that determines clang-format's output: the file
+ * contents, the requested ranges, the file path (passed as {@code -assume-filename}, it selects the
+ * language and the main include), the effective {@code .clang-format} file and its contents (see
+ * {@link ConfigIndex}), and the identity of the binary (its resolved path and version). The cache
+ * is a LRU map bounded by the estimated memory held by its entries.
+ */
+final class FormatResultCache {
+  static final FormatResultCache INSTANCE = new FormatResultCache(16 * 1024 * 1024);
+
+  /** Rough per-entry overhead of the map entry, key and replacement arrays, in bytes. */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private final long maxBytes;
+  private final LinkedHashMap<Key, Replacements> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  FormatResultCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cached replacements for {@code key}, with the cursor mapped from {@code cursor}, or
+   * null if clang-format has to run.
+   */
+  Replacements get(Key key, int cursor) {
+    Replacements cached;
+    synchronized (this) {
+      cached = entries.get(key);
+    }
+    if (cached == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return cached.withCursor(cached.mapOffset(cursor));
+  }
+
+  void put(Key key, Replacements replacements) {
+    long size = estimateSize(replacements);
+    if (size > maxBytes) {
+      return;
+    }
+    synchronized (this) {
+      Replacements previous = entries.put(key, replacements);
+      if (previous != null) {
+        bytes -= estimateSize(previous);
+      }
+      bytes += size;
+      Iterator<Map.Entry<Key, Replacements>> it = entries.entrySet().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        bytes -= estimateSize(it.next().getValue());
+        it.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  long hitCount() {
+    return hits.get();
+  }
+
+  long missCount() {
+    return misses.get();
+  }
+
+  private static long estimateSize(Replacements replacements) {
+    long size = ENTRY_OVERHEAD;
+    for (int i = 0; i < replacements.size(); i++) {
+      // Two ints, a reference and the string's characters.
+      size += 8 + 8 + 40 + 2L * replacements.value(i).length();
+    }
+    return size;
+  }
+
+  /**
+   * Computes the cache key for formatting {@code ranges} of {@code contents} as the file at
+   * {@code filePath} with {@code toolchain}.
+   */
+  static Key key(String filePath, CharSequence contents, Collection<TextRange> ranges,
+                 Toolchain toolchain) {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[8192];
+    int pos = 0;
+    for (int i = 0; i < contents.length(); i++) {
+      if (pos + 2 > buffer.length) {
+        digest.update(buffer, 0, pos);
+        pos = 0;
+      }
+      char c = contents.charAt(i);
+      buffer[pos++] = (byte) (c >> 8);
+      buffer[pos++] = (byte) c;
+    }
+    digest.update(buffer, 0, pos);
+    StringBuilder meta = new StringBuilder();
+    for (TextRange range : ranges) {
+      meta.append(range.getStartOffset()).append(':').append(range.getLength()).append(';');
+    }
+    meta.append('\0').append(filePath);
+    meta.append('\0').append(ConfigIndex.INSTANCE.forFile(filePath).fingerprint);
+    meta.append('\0').append(binaryFingerprint(toolchain));
+    digest.update(meta.toString().getBytes(StandardCharsets.UTF_8));
+    return new Key(digest.digest());
+  }
+
+  private static String binaryFingerprint(Toolchain toolchain) {
+    String identity = toolchain.binary + '@' + toolchain.path + '@' + toolchain.version;
+    File binary = new File(toolchain.binary);
+    if (binary.isAbsolute()) {
+      // Catches upgrades of the binary in place.
+      identity += "@" + binary.lastModified() + "/" + binary.length();
+    }
+    return identity;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-256 is not available", e);
+    }
+  }
+
+  /** A digest of a format request's inputs. */
+  static final class Key {
+    private final byte[] digest;
+    private final int hashCode;
+
+    Key(byte[] digest) {
+      this.digest = digest;
+      this.hashCode = Arrays.hashCode(digest);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package io.probst.idea.clangformat;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects per-phase latencies of format requests, grouped by language (file extension) and input
+ * size, so that slow formats can be attributed to PATH resolution, process spawn, clang-format
+ * itself, parsing or applying the result.
+ */
+final class FormatStats {
+  static final FormatStats INSTANCE = new FormatStats();
+
+  enum Phase {
+    /** Waiting for a free process slot in {@link ProcessScheduler}. */
+    QUEUE,
+    /** Resolving PATH and the binary, and building the command line. */
+    RESOLVE,
+    /** Starting the process. */
+    SPAWN,
+    /** Writing the file contents to clang-format's stdin. */
+    WRITE,
+    /** From starting the process until it exited. */
+    PROCESS,
+    /** Finishing parsing after the process exited, and mapping offsets. */
+    PARSE,
+    /** Applying the replacements to the document. */
+    APPLY,
+    /** The whole request, from snapshot to applied result. */
+    TOTAL
+  }
+
+  private static final long[] SIZE_BUCKETS = {10 * 1024, 100 * 1024, 1024 * 1024};
+  private static final String[] SIZE_BUCKET_NAMES = {"<10KB", "<100KB", "<1MB", ">=1MB"};
+
+  private final ConcurrentMap<String, Map<Phase, LatencyHistogram>> histograms =
+      new ConcurrentHashMap<>();
+
+  void record(String filePath, long inputBytes, Phase phase, long nanos) {
+    histograms.computeIfAbsent(group(filePath, inputBytes), g -> {
+      Map<Phase, LatencyHistogram> map = new EnumMap<>(Phase.class);
+      for (Phase p : Phase.values()) {
+        map.put(p, new LatencyHistogram());
+      }
+      return map;
+    }).get(phase).recordNanos(nanos);
+  }
+
+  /** Returns a timer recording phases of one request for {@code filePath}. */
+  Timer timer(String filePath, long inputBytes) {
+    return new Timer(filePath, inputBytes);
+  }
+
+  void clear() {
+    histograms.clear();
+  }
+
+  private static String group(String filePath, long inputBytes) {
+    int slash = filePath.lastIndexOf('/');
+    int dot = filePath.lastIndexOf('.');
+    String language = dot > slash ? filePath.substring(dot + 1).toLowerCase(Locale.ROOT) : "none";
+    int size = 0;
+    while (size < SIZE_BUCKETS.length && inputBytes >= SIZE_BUCKETS[size]) {
+      size++;
+    }
+    return language + ' ' + SIZE_BUCKET_NAMES[size];
+  }
+
+  /** Returns a human readable table of p50/p95/p99 latencies in milliseconds. */
+  String toText() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "%-18s %-8s %8s %9s %9s %9s%n",
+        "group", "phase", "count", "p50 ms", "p95 ms", "p99 ms"));
+    for (Map.Entry<String, Map<Phase, LatencyHistogram>> group : sorted().entrySet()) {
+      for (Map.Entry<Phase, LatencyHistogram> phase : group.getValue().entrySet()) {
+        LatencyHistogram h = phase.getValue();
+        if (h.count() == 0) {
+          continue;
+        }
+        sb.append(String.format(Locale.ROOT, "%-18s %-8s %8d %9.1f %9.1f %9.1f%n",
+            group.getKey(), phase.getKey(), h.count(), h.percentileMicros(50) / 1000.0,
+            h.percentileMicros(95) / 1000.0, h.percentileMicros(99) / 1000.0));
+      }
+    }
+    appendGauges(sb, "%n%s: %s");
+    return sb.toString();
+  }
+
+  /** Returns the statistics as a JSON object, latencies in microseconds. */
+  String toJson() {
+    StringBuilder sb = new StringBuilder("{\"groups\":{");
+    String groupSeparator = "";
+    for (Map.Entry<String, Map<Phase, LatencyHistogram>> group : sorted().entrySet()) {
+      String name = group.getKey().replace("\\", "\\\\").replace("\"", "\\\"");
+      sb.append(groupSeparator).append('"').append(name).append("\":{");
+      groupSeparator = ",";
+      String phaseSeparator = "";
+      for (Map.Entry<Phase, LatencyHistogram> phase : group.getValue().entrySet()) {
+        LatencyHistogram h = phase.getValue();
+        if (h.count() == 0) {
+          continue;
+        }
+        sb.append(phaseSeparator).append(String.format(Locale.ROOT,
+            "\"%s\":{\"count\":%d,\"p50\":%d,\"p95\":%d,\"p99\":%d}", phase.getKey(), h.count(),
+            h.percentileMicros(50), h.percentileMicros(95), h.percentileMicros(99)));
+        phaseSeparator = ",";
+      }
+      sb.append('}');
+    }
+    sb.append('}');
+    appendGauges(sb, ",\"%s\":%s");
+    return sb.append('}').toString();
+  }
+
+  private static void appendGauges(StringBuilder sb, String format) {
+    ProcessScheduler scheduler = ProcessScheduler.INSTANCE;
+    FormatResultCache cache = FormatResultCache.INSTANCE;
+    sb.append(String.format(Locale.ROOT, format, "cacheHits", cache.hitCount()));
+    sb.append(String.format(Locale.ROOT, format, "cacheMisses", cache.missCount()));
+    sb.append(String.format(Locale.ROOT, format, "activeProcesses", scheduler.activeProcesses()));
+    sb.append(String.format(Locale.ROOT, format, "queueDepth", scheduler.queueDepth()));
+    sb.append(String.format(Locale.ROOT, format, "virtualThreads", scheduler.usesVirtualThreads()));
+  }
+
+  private Map<String, Map<Phase, LatencyHistogram>> sorted() {
+    return new TreeMap<>(histograms);
+  }
+
+  /** Records the phases of a single request into its group. */
+  final class Timer {
+    private final String filePath;
+    private final long inputBytes;
+
+    private Timer(String filePath, long inputBytes) {
+      this.filePath = filePath;
+      this.inputBytes = inputBytes;
+    }
+
+    /** Records the time from {@code startNanos} (a {@link System#nanoTime()} value) until now. */
+    void since(Phase phase, long startNanos) {
+      record(filePath, inputBytes, phase, System.nanoTime() - startNanos);
+    }
+  }
+}
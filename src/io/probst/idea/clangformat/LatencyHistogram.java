@@ -0,0 +1,70 @@
+package io.probst.idea.clangformat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies with a relative error of at most 12.5%.
+ *
+ * Values are recorded in microseconds. Values below 16 get a bucket each; above that, every power
+ * of two is split into eight buckets.
+ */
+final class LatencyHistogram {
+  private static final int LINEAR_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = LINEAR_BUCKETS + (64 - 4) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  void recordNanos(long nanos) {
+    counts.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+  }
+
+  long count() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the value in microseconds below which {@code percentile} percent of the recorded values
+   * fall, or 0 if nothing was recorded.
+   */
+  long percentileMicros(double percentile) {
+    long total = count();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= Math.max(rank, 1)) {
+        return upperBound(i);
+      }
+    }
+    return upperBound(BUCKETS - 1);
+  }
+
+  static int bucket(long micros) {
+    if (micros < LINEAR_BUCKETS) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+  }
+
+  /** Returns the largest value that falls into {@code bucket}. */
+  static long upperBound(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+    int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    long lower = (1L << exponent) + ((long) sub << (exponent - SUB_BUCKET_BITS));
+    return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
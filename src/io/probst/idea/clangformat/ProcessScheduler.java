@@ -0,0 +1,286 @@
+package io.probst.idea.clangformat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs clang-format processes and the blocking I/O on their pipes.
+ *
+ * Each process needs three threads that spend their time blocked on pipes (stdin, stdout and
+ * stderr), so this deliberately stays off the shared {@code ForkJoinPool.commonPool()}. Pipe tasks
+ * run on virtual threads if the JDK supports them, and otherwise on a dedicated pool. The number of
+ * concurrently running processes is capped, which also guarantees that the fallback pool always has
+ * a thread for every pipe of every running process. Output pipes are read through {@link #pipe},
+ * so that their threads are freed when the process ends, even if processes it started keep the
+ * pipes open.
+ */
+final class ProcessScheduler {
+  static final ProcessScheduler INSTANCE =
+      new ProcessScheduler(Math.max(2, 2 * Runtime.getRuntime().availableProcessors()));
+
+  /** Threads needed per running process, one per pipe. */
+  private static final int THREADS_PER_PROCESS = 3;
+  /** Timeouts before enough runs of a size class have been observed. */
+  private static final long BASE_TIMEOUT_MILLIS = 5000;
+  private static final long TIMEOUT_MILLIS_PER_MB = 2000;
+  /** Inputs below this size are dominated by starting the process. */
+  private static final long SMALL_INPUT_BYTES = 64 * 1024;
+  /** Observed runs of a size class needed before its timeout is derived from them. */
+  private static final int MIN_SAMPLES = 5;
+  /** Observed timeouts allow this multiple of the expected latency. */
+  private static final int TIMEOUT_FACTOR = 10;
+  private static final long MIN_TIMEOUT_MILLIS = 2000;
+  private static final double EWMA_WEIGHT = 0.2;
+  /** Bounds for waiting on a pipe with no data, in milliseconds; see {@link ProcessPipe}. */
+  private static final long MIN_POLL_MILLIS = 1;
+  private static final long MAX_POLL_MILLIS = 16;
+
+  private final ExecutorService pipes;
+  private final boolean virtualThreads;
+  private final Semaphore slots;
+  private final int maxProcesses;
+  private final AtomicInteger activeProcesses = new AtomicInteger();
+  private final AtomicInteger activePipeTasks = new AtomicInteger();
+
+  // Observed latencies of successful runs, guarded by this.
+  private int smallSamples = 0;
+  private int largeSamples = 0;
+  private double overheadNanos = 0;
+  private double nanosPerByte = 0;
+
+  ProcessScheduler(int maxProcesses) {
+    this.maxProcesses = maxProcesses;
+    this.slots = new Semaphore(maxProcesses, true);
+    ExecutorService virtual = createVirtualThreadExecutor();
+    this.virtualThreads = virtual != null;
+    this.pipes = virtual != null ? virtual : createPipePool(maxProcesses * THREADS_PER_PROCESS);
+  }
+
+  /** Returns {@code Executors.newVirtualThreadPerTaskExecutor()} on JDKs that have it, else null. */
+  private static ExecutorService createVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+      return null;
+    }
+  }
+
+  private static ExecutorService createPipePool(int threads) {
+    AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), r -> {
+          Thread thread = new Thread(r, "clang-format I/O " + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Starts {@code builder}'s process once fewer than the maximum number of processes are running.
+   * The caller must pass the process to {@link #finish} when done with it.
+   */
+  Process start(ProcessBuilder builder, FormatStats.Timer timer)
+      throws IOException, InterruptedException {
+    long queued = System.nanoTime();
+    slots.acquire();
+    timer.since(FormatStats.Phase.QUEUE, queued);
+    try {
+      long spawn = System.nanoTime();
+      Process process = builder.start();
+      timer.since(FormatStats.Phase.SPAWN, spawn);
+      activeProcesses.incrementAndGet();
+      return process;
+    } catch (IOException | RuntimeException e) {
+      slots.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Kills {@code process} if it is still running, closes its pipes, which ends the tasks still
+   * reading them through {@link #pipe}, and frees its slot.
+   */
+  void finish(Process process) {
+    if (process.isAlive()) {
+      process.destroyForcibly();
+    }
+    closeQuietly(process.getOutputStream());
+    closeQuietly(process.getInputStream());
+    closeQuietly(process.getErrorStream());
+    activeProcesses.decrementAndGet();
+    slots.release();
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing left to clean up.
+    }
+  }
+
+  /** Runs a task that blocks on a process pipe. */
+  <T> Future<T> submitIo(Callable<T> task) {
+    return pipes.submit(() -> {
+      activePipeTasks.incrementAndGet();
+      try {
+        return task.call();
+      } finally {
+        activePipeTasks.decrementAndGet();
+      }
+    });
+  }
+
+  /**
+   * Returns a stream reading {@code stream}, an output pipe of {@code process}, that ends when the
+   * process has exited and the pipe is drained.
+   */
+  static InputStream pipe(Process process, InputStream stream) {
+    return new ProcessPipe(process, stream);
+  }
+
+  /**
+   * Returns how long a process formatting {@code inputBytes} of input may take, from writing its
+   * input to exiting.
+   *
+   * Once enough runs of similar size have been observed, this is a multiple of the latency they
+   * predict: the process overhead seen for small inputs plus the time per byte seen for large ones.
+   * Before that, generous defaults apply.
+   */
+  synchronized long timeoutNanos(long inputBytes) {
+    double expected;
+    if (inputBytes < SMALL_INPUT_BYTES && smallSamples >= MIN_SAMPLES) {
+      expected = overheadNanos;
+    } else if (inputBytes >= SMALL_INPUT_BYTES && largeSamples >= MIN_SAMPLES) {
+      expected = overheadNanos + nanosPerByte * inputBytes;
+    } else {
+      return defaultTimeoutNanos(inputBytes);
+    }
+    return Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_TIMEOUT_MILLIS),
+        (long) (expected * TIMEOUT_FACTOR));
+  }
+
+  static long defaultTimeoutNanos(long inputBytes) {
+    return TimeUnit.MILLISECONDS.toNanos(
+        BASE_TIMEOUT_MILLIS + inputBytes * TIMEOUT_MILLIS_PER_MB / (1024 * 1024));
+  }
+
+  /** Records that a process formatted {@code inputBytes} of input in {@code nanos}. */
+  synchronized void recordLatency(long inputBytes, long nanos) {
+    if (inputBytes < SMALL_INPUT_BYTES) {
+      overheadNanos = smallSamples++ == 0 ? nanos : ewma(overheadNanos, nanos);
+    } else {
+      // Without a known overhead, the whole time counts per byte, which errs on the long side.
+      double perByte = Math.max(0, nanos - (smallSamples > 0 ? overheadNanos : 0)) / inputBytes;
+      nanosPerByte = largeSamples++ == 0 ? perByte : ewma(nanosPerByte, perByte);
+    }
+  }
+
+  private static double ewma(double average, double sample) {
+    return average + EWMA_WEIGHT * (sample - average);
+  }
+
+  /** Number of requests waiting for a process slot or for a pipe thread. */
+  int queueDepth() {
+    int depth = slots.getQueueLength();
+    if (pipes instanceof ThreadPoolExecutor) {
+      depth += ((ThreadPoolExecutor) pipes).getQueue().size();
+    }
+    return depth;
+  }
+
+  int activeProcesses() {
+    return activeProcesses.get();
+  }
+
+  /** Number of pipe tasks running, including ones blocked on pipes of finished processes. */
+  int activePipeTasks() {
+    return activePipeTasks.get();
+  }
+
+  int maxProcesses() {
+    return maxProcesses;
+  }
+
+  boolean usesVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * A process output pipe that only reads data that is available. Closing a pipe does not wake a
+   * thread blocked reading it, and a process that leaves children behind (e.g. a wrapper script)
+   * may never see its pipes reach their end; a blocked read would hold its thread forever. Instead,
+   * this polls while the pipe is empty, and ends the stream once the process has exited.
+   */
+  private static final class ProcessPipe extends InputStream {
+    private final Process process;
+    private final InputStream stream;
+
+    ProcessPipe(Process process, InputStream stream) {
+      this.process = process;
+      this.stream = stream;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int available = awaitAvailable();
+      return available == 0 ? -1 : stream.read(b, off, Math.min(len, available));
+    }
+
+    @Override
+    public int available() throws IOException {
+      return stream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      stream.close();
+    }
+
+    /** Waits for data, and returns how much can be read without blocking, 0 at the end. */
+    private int awaitAvailable() throws IOException {
+      long poll = MIN_POLL_MILLIS;
+      while (true) {
+        int available = stream.available();
+        if (available > 0) {
+          return available;
+        }
+        if (!process.isAlive()) {
+          // The process may have written more right before exiting.
+          return stream.available();
+        }
+        try {
+          Thread.sleep(poll);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted reading from clang-format");
+        }
+        poll = Math.min(poll * 2, MAX_POLL_MILLIS);
+      }
+    }
+  }
+}
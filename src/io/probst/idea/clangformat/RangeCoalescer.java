@@ -0,0 +1,61 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Merges format ranges, so that clang-format gets few {@code -offset/-length} pairs.
+ */
+final class RangeCoalescer {
+  /** Upper bound on the number of ranges passed to a single clang-format invocation. */
+  static final int MAX_RANGES = 64;
+
+  private RangeCoalescer() {}
+
+  /**
+   * Sorts {@code ranges} and merges ranges that overlap or are at most {@code gap} characters
+   * apart. If more than {@code maxRanges} remain, the ranges separated by the smallest gaps are
+   * merged until at most {@code maxRanges} are left.
+   */
+  static List<TextRange> coalesce(Collection<TextRange> ranges, int gap, int maxRanges) {
+    List<TextRange> sorted = new ArrayList<>(ranges);
+    sorted.sort(Comparator.comparingInt(TextRange::getStartOffset));
+    List<TextRange> merged = new ArrayList<>(sorted.size());
+    for (TextRange range : sorted) {
+      int last = merged.size() - 1;
+      if (last >= 0 && range.getStartOffset() - merged.get(last).getEndOffset() <= gap) {
+        merged.set(last, merged.get(last).union(range));
+      } else {
+        merged.add(range);
+      }
+    }
+    if (merged.size() <= maxRanges) {
+      return merged;
+    }
+
+    // Find the largest gap that still has to be closed, and close all gaps up to that size.
+    int[] gaps = new int[merged.size() - 1];
+    for (int i = 0; i < gaps.length; i++) {
+      gaps[i] = merged.get(i + 1).getStartOffset() - merged.get(i).getEndOffset();
+    }
+    int[] sortedGaps = gaps.clone();
+    Arrays.sort(sortedGaps);
+    int threshold = sortedGaps[merged.size() - Math.max(maxRanges, 1) - 1];
+    List<TextRange> result = new ArrayList<>(maxRanges);
+    result.add(merged.get(0));
+    for (int i = 0; i < gaps.length; i++) {
+      int last = result.size() - 1;
+      if (gaps[i] <= threshold) {
+        result.set(last, result.get(last).union(merged.get(i + 1)));
+      } else {
+        result.add(merged.get(i + 1));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,181 @@
+package io.probst.idea.clangformat;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The replacements clang-format reports with {@code -output-replacements-xml}, in document order.
+ *
+ * Offsets and lengths are kept in primitive arrays instead of one object per replacement, as
+ * whole-file formats of generated sources can produce tens of thousands of them.
+ */
+final class Replacements {
+  private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+  int cursor;
+  private int size;
+  private int[] offsets;
+  private int[] lengths;
+  private String[] values;
+
+  Replacements() {
+    this(16);
+  }
+
+  private Replacements(int capacity) {
+    offsets = new int[capacity];
+    lengths = new int[capacity];
+    values = new String[capacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int offset(int i) {
+    return offsets[i];
+  }
+
+  int length(int i) {
+    return lengths[i];
+  }
+
+  String value(int i) {
+    return values[i];
+  }
+
+  void add(int offset, int length, String value) {
+    if (size == offsets.length) {
+      int capacity = size * 2;
+      offsets = Arrays.copyOf(offsets, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      values = Arrays.copyOf(values, capacity);
+    }
+    offsets[size] = offset;
+    lengths[size] = length;
+    values[size] = value;
+    size++;
+  }
+
+  /**
+   * Returns a copy of these replacements with a different cursor. The copy shares the replacement
+   * arrays, so neither may be modified afterwards.
+   */
+  Replacements withCursor(int cursor) {
+    Replacements copy = new Replacements(0);
+    copy.cursor = cursor;
+    copy.size = size;
+    copy.offsets = offsets;
+    copy.lengths = lengths;
+    copy.values = values;
+    return copy;
+  }
+
+  /**
+   * Maps an offset in the original text to the corresponding offset in the text after applying
+   * the replacements. Offsets within a replaced range keep their distance to its start, clamped to
+   * the replacement text.
+   */
+  int mapOffset(int offset) {
+    int delta = 0;
+    for (int i = 0; i < size; i++) {
+      int start = offsets[i];
+      if (start >= offset) {
+        break;
+      }
+      int end = start + lengths[i];
+      if (offset < end) {
+        return start + delta + Math.min(offset - start, values[i].length());
+      }
+      delta += values[i].length() - lengths[i];
+    }
+    return offset + delta;
+  }
+
+  /**
+   * Converts the UTF-8 byte offsets clang-format reports into character offsets of the text
+   * {@code index} was built for. Must be called once, right after parsing.
+   */
+  void toCharOffsets(Utf8OffsetIndex index) {
+    if (index.isAscii()) {
+      return;
+    }
+    cursor = index.toCharOffset(cursor);
+    for (int i = 0; i < size; i++) {
+      int start = index.toCharOffset(offsets[i]);
+      int end = index.toCharOffset(offsets[i] + lengths[i]);
+      offsets[i] = start;
+      lengths[i] = end - start;
+    }
+  }
+
+  /**
+   * Returns the text resulting from applying the replacements to {@code text}, built in a single
+   * pass.
+   */
+  String applyTo(CharSequence text) {
+    int delta = 0;
+    for (int i = 0; i < size; i++) {
+      delta += values[i].length() - lengths[i];
+    }
+    StringBuilder result = new StringBuilder(text.length() + Math.max(delta, 0));
+    int copied = 0;
+    for (int i = 0; i < size; i++) {
+      result.append(text, copied, offsets[i]).append(values[i]);
+      copied = offsets[i] + lengths[i];
+    }
+    return result.append(text, copied, text.length()).toString();
+  }
+
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+
+  /**
+   * Parses clang-format's XML output, pulling elements from {@code inputStream} as clang-format
+   * writes them. Closes the stream.
+   */
+  static Replacements parse(InputStream inputStream) {
+    Replacements result = new Replacements();
+    try (InputStream in = inputStream) {
+      XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in, "UTF-8");
+      try {
+        while (reader.hasNext()) {
+          if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+            continue;
+          }
+          switch (reader.getLocalName()) {
+            case "cursor":
+              result.cursor = Integer.parseInt(reader.getElementText().trim());
+              break;
+            case "replacement":
+              int offset = Integer.parseInt(reader.getAttributeValue(null, "offset"));
+              int length = Integer.parseInt(reader.getAttributeValue(null, "length"));
+              result.add(offset, length, reader.getElementText());
+              break;
+            default:
+              break;
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException | IOException | NumberFormatException e) {
+      throw new RuntimeException("Failed to parse clang-format XML replacements", e);
+    }
+    return result;
+  }
+}
@@ -7,16 +7,36 @@ public class Settings {
   private static final String CF_BINARY_PROP = ClangFormatConfigurable.class.getName() + ".clangFormatBinary";
   private static final String CF_PATH_PROP = ClangFormatConfigurable.class.getName() + ".path";
   private static final String CF_VCS_FORMAT_PROP = ClangFormatConfigurable.class.getName() + ".vcs_format";
+  private static final String CF_RANGE_MERGE_GAP_PROP = ClangFormatConfigurable.class.getName() + ".rangeMergeGap";
+  private static final String CF_FORMAT_ON_SAVE_PROP = ClangFormatConfigurable.class.getName() + ".formatOnSave";
+  private static final String CF_FORMAT_ON_SAVE_BUDGET_PROP =
+      ClangFormatConfigurable.class.getName() + ".formatOnSaveBudgetMillis";
+  private static final String CF_FORMAT_ON_SAVE_CHANGED_ONLY_PROP =
+      ClangFormatConfigurable.class.getName() + ".formatOnSaveChangedOnly";
+  private static final String CF_FORMAT_BEFORE_COMMIT_PROP =
+      ClangFormatConfigurable.class.getName() + ".formatBeforeCommit";
+  static final int DEFAULT_FORMAT_ON_SAVE_BUDGET_MILLIS = 1000;
 
   final String clangFormatBinary;
   final String path;
   final boolean updateOnlyChangedText;
+  /** Changed ranges at most this many characters apart are formatted as one range. */
+  final int rangeMergeGap;
+  final boolean formatOnSave;
+  /** How long saving waits for clang-format before saving documents unformatted. */
+  final int formatOnSaveBudgetMillis;
+  /** Whether saving formats only the text changed compared to VCS, rather than whole files. */
+  final boolean formatOnSaveChangedOnly;
+  /** Set in the commit dialog, see {@link ClangFormatCheckinHandlerFactory}. */
+  final boolean formatBeforeCommit;
 
   static Settings get() {
     return new Settings();
   }
 
-  static Settings update(String clangFormatBinary, String path, boolean updateOnlyChangedText) {
+  static Settings update(String clangFormatBinary, String path, boolean updateOnlyChangedText,
+                         int rangeMergeGap, boolean formatOnSave, int formatOnSaveBudgetMillis,
+                         boolean formatOnSaveChangedOnly) {
     if ("".equals(clangFormatBinary)) {
       clangFormatBinary = "clang-format";
     }
@@ -27,13 +47,31 @@ public class Settings {
     props.setValue(CF_BINARY_PROP, clangFormatBinary, "clang-format");
     props.setValue(CF_PATH_PROP, path, null);
     props.setValue(CF_VCS_FORMAT_PROP, updateOnlyChangedText);
+    props.setValue(CF_RANGE_MERGE_GAP_PROP, Math.max(0, rangeMergeGap), 0);
+    props.setValue(CF_FORMAT_ON_SAVE_PROP, formatOnSave);
+    props.setValue(CF_FORMAT_ON_SAVE_BUDGET_PROP, Math.max(0, formatOnSaveBudgetMillis),
+        DEFAULT_FORMAT_ON_SAVE_BUDGET_MILLIS);
+    props.setValue(CF_FORMAT_ON_SAVE_CHANGED_ONLY_PROP, formatOnSaveChangedOnly, true);
+    Toolchain.invalidate();
+    // Start resolving the new binary right away rather than on the next format.
+    Toolchain.get();
     return get();
   }
 
+  static void setFormatBeforeCommit(boolean formatBeforeCommit) {
+    PropertiesComponent.getInstance().setValue(CF_FORMAT_BEFORE_COMMIT_PROP, formatBeforeCommit);
+  }
+
   private Settings() {
     PropertiesComponent props = PropertiesComponent.getInstance();
     clangFormatBinary = props.getValue(CF_BINARY_PROP, "clang-format");
     path = props.getValue(CF_PATH_PROP);
     updateOnlyChangedText = props.getBoolean(CF_VCS_FORMAT_PROP, false);
+    rangeMergeGap = props.getInt(CF_RANGE_MERGE_GAP_PROP, 0);
+    formatOnSave = props.getBoolean(CF_FORMAT_ON_SAVE_PROP, false);
+    formatOnSaveBudgetMillis =
+        props.getInt(CF_FORMAT_ON_SAVE_BUDGET_PROP, DEFAULT_FORMAT_ON_SAVE_BUDGET_MILLIS);
+    formatOnSaveChangedOnly = props.getBoolean(CF_FORMAT_ON_SAVE_CHANGED_ONLY_PROP, true);
+    formatBeforeCommit = props.getBoolean(CF_FORMAT_BEFORE_COMMIT_PROP, false);
   }
 }
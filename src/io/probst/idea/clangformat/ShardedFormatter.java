@@ -0,0 +1,448 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Formats a very large range with several clang-format processes in parallel.
+ *
+ * The range is split into shards at blank lines between top-level declarations (at file or
+ * namespace level, outside comments, strings, preprocessor directives and conditionals). Each
+ * process still reads the whole file, but only lays out its own shard, which is where clang-format
+ * spends its time. The shards' replacements are merged in document order; if they overlap, i.e.
+ * the shards influenced each other's formatting, the result is discarded and the caller formats the
+ * range in a single process.
+ */
+final class ShardedFormatter {
+  /** Ranges below this many bytes are formatted in a single process. */
+  static final int MIN_BYTES = 1024 * 1024;
+  /** Lower bound for the size of a single shard, so that process overhead stays negligible. */
+  private static final int MIN_SHARD_BYTES = 256 * 1024;
+
+  private static final Set<String> C_FAMILY_EXTENSIONS = new HashSet<>(Arrays.asList(
+      "c", "cc", "cpp", "cxx", "c++", "h", "hh", "hpp", "hxx", "h++", "inc", "ipp", "m", "mm",
+      "proto"));
+
+  /** Runs the shard processes; they only block on {@link ProcessScheduler}, so this is unbounded. */
+  private static final ExecutorService SHARDS = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "clang-format shard");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /** Formats some ranges of the file in a single clang-format process. */
+  interface RangeFormatter {
+    Replacements format(Collection<TextRange> ranges)
+        throws ClangFormatter.FormatException, InterruptedException;
+  }
+
+  private ShardedFormatter() {}
+
+  /**
+   * Formats {@code ranges} of {@code contents} in shards, or returns null if the ranges are too
+   * small to be worth sharding, cannot be split safely, or the shards' results interact.
+   */
+  static Replacements format(String filePath, CharSequence contents, Utf8OffsetIndex offsetIndex,
+                             int cursor, Collection<TextRange> ranges, RangeFormatter formatter)
+      throws ClangFormatter.FormatException, InterruptedException {
+    if (ranges.size() != 1 || !isCFamily(filePath)) {
+      return null;
+    }
+    TextRange range = ranges.iterator().next();
+    int bytes = offsetIndex.toByteOffset(range.getEndOffset())
+        - offsetIndex.toByteOffset(range.getStartOffset());
+    int maxShards = Math.min(Runtime.getRuntime().availableProcessors(),
+        ProcessScheduler.INSTANCE.maxProcesses());
+    int shardCount = Math.min(maxShards, bytes / MIN_SHARD_BYTES);
+    if (bytes < MIN_BYTES || shardCount < 2) {
+      return null;
+    }
+    List<TextRange> shards = split(contents, range, shardCount);
+    if (shards.size() < 2) {
+      return null;
+    }
+
+    List<Future<Replacements>> futures = new ArrayList<>(shards.size());
+    try {
+      for (TextRange shard : shards) {
+        futures.add(SHARDS.submit(() -> formatter.format(Collections.singletonList(shard))));
+      }
+      List<Replacements> results = new ArrayList<>(shards.size());
+      for (Future<Replacements> future : futures) {
+        results.add(future.get());
+      }
+      return merge(shards, results, cursor);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ClangFormatter.FormatException) {
+        throw (ClangFormatter.FormatException) e.getCause();
+      }
+      throw new ClangFormatter.FormatException(e.getCause().getMessage(), e.getCause());
+    } finally {
+      // Kills the remaining processes if one shard failed or the caller was interrupted.
+      for (Future<Replacements> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private static boolean isCFamily(String filePath) {
+    int slash = filePath.lastIndexOf('/');
+    int dot = filePath.lastIndexOf('.');
+    return dot > slash
+        && C_FAMILY_EXTENSIONS.contains(filePath.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Merges the shards' replacements into one set in document order. Returns null if replacements
+   * of different shards overlap or touch, unless they are identical.
+   *
+   * Each process reports the cursor as if only its own shard had been formatted, so the cursor is
+   * taken from the shard containing it and shifted by the replacements of the shards before it.
+   */
+  static Replacements merge(List<TextRange> shards, List<Replacements> results, int cursor) {
+    Replacements merged = new Replacements();
+    int mergedCursor = -1;
+    int delta = 0;
+    int lastEnd = -1;
+    int lastShard = -1;
+    for (int s = 0; s < results.size(); s++) {
+      Replacements shard = results.get(s);
+      boolean containsCursor = cursor >= shards.get(s).getStartOffset()
+          && (s == results.size() - 1 || cursor < shards.get(s + 1).getStartOffset());
+      if (containsCursor) {
+        mergedCursor = shard.cursor + delta;
+      }
+      for (int i = 0; i < shard.size(); i++) {
+        int offset = shard.offset(i);
+        if (lastShard >= 0 && lastShard != s && offset <= lastEnd) {
+          int previous = merged.size() - 1;
+          boolean duplicate = merged.offset(previous) == offset
+              && merged.length(previous) == shard.length(i)
+              && merged.value(previous).equals(shard.value(i));
+          if (!duplicate) {
+            return null;
+          }
+          continue;
+        }
+        merged.add(offset, shard.length(i), shard.value(i));
+        delta += shard.value(i).length() - shard.length(i);
+        lastEnd = offset + shard.length(i);
+        lastShard = s;
+      }
+    }
+    merged.cursor = mergedCursor >= 0 ? mergedCursor : merged.mapOffset(cursor);
+    return merged;
+  }
+
+  /**
+   * Splits {@code range} into at most {@code shardCount} shards of similar size at safe
+   * boundaries. Each shard ends at its last non-whitespace character, so that the whitespace
+   * between two shards is only ever formatted by the later one.
+   */
+  static List<TextRange> split(CharSequence text, TextRange range, int shardCount) {
+    List<Integer> boundaries = safeBoundaries(text, range);
+    List<TextRange> shards = new ArrayList<>(shardCount);
+    int start = range.getStartOffset();
+    int target = range.getLength() / shardCount;
+    int b = 0;
+    for (int k = 1; k < shardCount; k++) {
+      int wanted = range.getStartOffset() + k * target;
+      while (b < boundaries.size() && boundaries.get(b) < wanted) {
+        b++;
+      }
+      if (b == boundaries.size()) {
+        break;
+      }
+      int boundary = boundaries.get(b++);
+      int end = boundary;
+      while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+        end--;
+      }
+      if (end > start) {
+        shards.add(new TextRange(start, end));
+        start = boundary;
+      }
+    }
+    shards.add(new TextRange(start, range.getEndOffset()));
+    return shards;
+  }
+
+  private enum State { CODE, LINE_COMMENT, BLOCK_COMMENT, STRING, CHAR, PREPROCESSOR }
+
+  /** Brace and parenthesis nesting, saved at conditional directives. */
+  private static final class Nesting {
+    /**
+     * One entry per open brace: 'n' if it opens a namespace or extern block, which does not nest
+     * the declarations inside it, else 'b'.
+     */
+    final StringBuilder braces = new StringBuilder();
+    int opaqueBraces = 0;
+    int parens = 0;
+
+    Nesting copy() {
+      Nesting copy = new Nesting();
+      copy.braces.append(braces);
+      copy.opaqueBraces = opaqueBraces;
+      copy.parens = parens;
+      return copy;
+    }
+  }
+
+  /** An open {@code #if}: the nesting at the directive, and at the end of its first branch. */
+  private static final class Conditional {
+    final Nesting atIf;
+    Nesting afterFirstBranch = null;
+
+    Conditional(Nesting atIf) {
+      this.atIf = atIf;
+    }
+  }
+
+  /**
+   * Returns the offsets within {@code range} of blank lines that separate top-level declarations,
+   * in ascending order. This is a deliberately conservative lexer: anything it does not understand
+   * (unbalanced braces, unterminated raw strings) makes it report fewer boundaries, never more.
+   *
+   * Like clang-format, it follows the first branch of conditional directives; other branches are
+   * lexed for comments and strings, but their braces are discarded and no boundaries are reported
+   * in them.
+   */
+  static List<Integer> safeBoundaries(CharSequence text, TextRange range) {
+    List<Integer> boundaries = new ArrayList<>();
+    State state = State.CODE;
+    Nesting nesting = new Nesting();
+    Deque<Conditional> conditionals = new ArrayDeque<>();
+    int inOtherBranches = 0;
+    int declarationStart = -1;
+    boolean lineStart = true;
+    int end = Math.min(range.getEndOffset(), text.length());
+    for (int i = 0; i < end; i++) {
+      char c = text.charAt(i);
+      char next = i + 1 < text.length() ? text.charAt(i + 1) : 0;
+      if (lineStart) {
+        lineStart = false;
+        if (state == State.CODE && i > range.getStartOffset() && isBlankLine(text, i)
+            && nesting.opaqueBraces == 0 && nesting.parens == 0 && inOtherBranches == 0
+            && declarationStart < 0) {
+          boundaries.add(i);
+        }
+        if (state == State.CODE && firstNonBlank(text, i) == '#') {
+          state = State.PREPROCESSOR;
+          String directive = directive(text, i);
+          if (directive.startsWith("if")) {
+            conditionals.push(new Conditional(nesting.copy()));
+          } else if (directive.equals("else") || directive.startsWith("elif")) {
+            Conditional conditional = conditionals.peek();
+            if (conditional == null) {
+              return boundaries;
+            }
+            if (conditional.afterFirstBranch == null) {
+              conditional.afterFirstBranch = nesting;
+              inOtherBranches++;
+            }
+            nesting = conditional.atIf.copy();
+          } else if (directive.equals("endif")) {
+            Conditional conditional = conditionals.poll();
+            if (conditional == null) {
+              return boundaries;
+            }
+            if (conditional.afterFirstBranch != null) {
+              nesting = conditional.afterFirstBranch;
+              inOtherBranches--;
+            }
+          }
+        }
+      }
+      if (c == '\n') {
+        lineStart = true;
+        boolean continued = i > 0 && text.charAt(i - 1) == '\\';
+        if (!continued && state != State.BLOCK_COMMENT) {
+          // Unterminated string or char literals are errors; recover at the end of the line.
+          state = State.CODE;
+        }
+        continue;
+      }
+      switch (state) {
+        case LINE_COMMENT:
+          break;
+        case PREPROCESSOR:
+          if (c == '/' && next == '*') {
+            // A block comment started on a directive line may run past its end.
+            state = State.BLOCK_COMMENT;
+            i++;
+          } else if (c == '/' && next == '/') {
+            state = State.LINE_COMMENT;
+            i++;
+          }
+          break;
+        case BLOCK_COMMENT:
+          if (c == '*' && next == '/') {
+            state = State.CODE;
+            i++;
+          }
+          break;
+        case STRING:
+        case CHAR:
+          if (c == '\\') {
+            i++;
+          } else if (c == (state == State.STRING ? '"' : '\'')) {
+            state = State.CODE;
+          }
+          break;
+        case CODE:
+          if (c == '/' && next == '/') {
+            state = State.LINE_COMMENT;
+            i++;
+          } else if (c == '/' && next == '*') {
+            state = State.BLOCK_COMMENT;
+            i++;
+          } else if (c == '"' && isRawStringPrefix(text, i)) {
+            i = rawStringEnd(text, i);
+            if (i < 0) {
+              return boundaries;
+            }
+          } else if (c == '"') {
+            state = State.STRING;
+          } else if (c == '\'' && !(i > 0 && Character.isDigit(text.charAt(i - 1)))) {
+            // A quote after a digit is a C++14 digit separator.
+            state = State.CHAR;
+          } else if (c == '(') {
+            nesting.parens++;
+          } else if (c == ')') {
+            nesting.parens = Math.max(nesting.parens - 1, 0);
+          } else if (c == '{') {
+            boolean transparent = declarationStart >= 0 && isTransparentBlock(text, declarationStart);
+            nesting.braces.append(transparent ? 'n' : 'b');
+            if (!transparent) {
+              nesting.opaqueBraces++;
+            }
+            declarationStart = -1;
+          } else if (c == '}') {
+            int last = nesting.braces.length() - 1;
+            if (last < 0) {
+              return boundaries; // Unbalanced, nothing after this can be trusted.
+            }
+            if (nesting.braces.charAt(last) == 'b') {
+              nesting.opaqueBraces--;
+            }
+            nesting.braces.setLength(last);
+            declarationStart = -1;
+          } else if (c == ';') {
+            declarationStart = -1;
+          } else if (declarationStart < 0 && !Character.isWhitespace(c)) {
+            declarationStart = i;
+          }
+          break;
+      }
+    }
+    return boundaries;
+  }
+
+  private static boolean isBlankLine(CharSequence text, int lineStart) {
+    for (int i = lineStart; i < text.length() && text.charAt(i) != '\n'; i++) {
+      if (!Character.isWhitespace(text.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static char firstNonBlank(CharSequence text, int lineStart) {
+    for (int i = lineStart; i < text.length() && text.charAt(i) != '\n'; i++) {
+      if (text.charAt(i) != ' ' && text.charAt(i) != '\t') {
+        return text.charAt(i);
+      }
+    }
+    return 0;
+  }
+
+  /** Returns the name of the directive on the line at {@code lineStart}, e.g. "ifdef". */
+  private static String directive(CharSequence text, int lineStart) {
+    int i = lineStart;
+    while (text.charAt(i) != '#') {
+      i++;
+    }
+    i++;
+    while (i < text.length() && (text.charAt(i) == ' ' || text.charAt(i) == '\t')) {
+      i++;
+    }
+    int start = i;
+    while (i < text.length() && Character.isLetter(text.charAt(i))) {
+      i++;
+    }
+    return text.subSequence(start, i).toString();
+  }
+
+  private static boolean isTransparentBlock(CharSequence text, int declarationStart) {
+    int i = declarationStart;
+    if (startsWith(text, i, "inline") && !isIdentifierPart(text, i + 6)) {
+      i += 6;
+      while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+        i++;
+      }
+    }
+    return (startsWith(text, i, "namespace") && !isIdentifierPart(text, i + 9))
+        || startsWith(text, i, "extern \"C");
+  }
+
+  private static boolean isRawStringPrefix(CharSequence text, int quote) {
+    if (quote == 0 || text.charAt(quote - 1) != 'R') {
+      return false;
+    }
+    int prefixStart = quote - 1;
+    while (prefixStart > 0 && isIdentifierPart(text, prefixStart - 1)) {
+      prefixStart--;
+    }
+    String prefix = text.subSequence(prefixStart, quote - 1).toString();
+    return prefix.isEmpty() || prefix.equals("u8") || prefix.equals("u") || prefix.equals("U")
+        || prefix.equals("L");
+  }
+
+  /** Returns the offset of the closing quote of the raw string at {@code quote}, or -1. */
+  private static int rawStringEnd(CharSequence text, int quote) {
+    int open = quote + 1;
+    while (open < text.length() && text.charAt(open) != '(' && open - quote <= 17) {
+      open++;
+    }
+    if (open >= text.length() || text.charAt(open) != '(') {
+      return -1;
+    }
+    String terminator = ")" + text.subSequence(quote + 1, open) + "\"";
+    for (int i = open + 1; i + terminator.length() <= text.length(); i++) {
+      if (startsWith(text, i, terminator)) {
+        return i + terminator.length() - 1;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isIdentifierPart(CharSequence text, int i) {
+    return i < text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_');
+  }
+
+  private static boolean startsWith(CharSequence text, int offset, String prefix) {
+    if (offset + prefix.length() > text.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (text.charAt(offset + i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
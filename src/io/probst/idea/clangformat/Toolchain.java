@@ -0,0 +1,145 @@
+package io.probst.idea.clangformat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The resolved clang-format installation: the PATH to run it with, the binary's absolute location,
+ * and its version.
+ *
+ * Resolving may spawn a login shell and probes the file system, so it runs in the background,
+ * ideally ahead of time (see {@link ClangFormatStartupActivity}), and is cached until the
+ * {@link Settings} change.
+ */
+final class Toolchain {
+  private static final Pattern VERSION = Pattern.compile("version (\\d+)\\.");
+  private static final ExecutorService RESOLVER = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "clang-format toolchain resolver");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private static String loginShellPath = null;
+  private static Future<Toolchain> current = null;
+
+  /** The binary to run, absolute if it was found on the PATH. */
+  final String binary;
+  /** The PATH to run the binary with, or null to inherit the IDE's environment. */
+  final String path;
+  /** The first line of {@code clang-format --version}, or empty if that failed. */
+  final String version;
+  /** The major version, or 0 if unknown. */
+  final int majorVersion;
+
+  private Toolchain(String binary, String path, String version) {
+    this.binary = binary;
+    this.path = path;
+    this.version = version;
+    Matcher matcher = VERSION.matcher(version);
+    this.majorVersion = matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+  }
+
+  /** Returns the toolchain for the current settings, starting to resolve it if necessary. */
+  static synchronized Future<Toolchain> get() {
+    if (current == null) {
+      Settings settings = Settings.get();
+      current = RESOLVER.submit(() -> resolve(settings.clangFormatBinary, settings.path));
+    }
+    return current;
+  }
+
+  /**
+   * Uses the given binary and PATH instead of the {@link Settings}, for running outside of the IDE
+   * (see {@link ClangFormatCli}).
+   */
+  static synchronized void useFixed(String binary, String path) {
+    current = RESOLVER.submit(() -> resolve(binary, path));
+  }
+
+  /** Returns the toolchain if it has already been resolved successfully, else null. */
+  static Toolchain getIfResolved() {
+    Future<Toolchain> toolchain = get();
+    if (!toolchain.isDone()) {
+      return null;
+    }
+    try {
+      return toolchain.get();
+    } catch (ExecutionException | InterruptedException e) {
+      return null;
+    }
+  }
+
+  /** Forgets the resolved toolchain, e.g. because the settings changed. */
+  static synchronized void invalidate() {
+    current = null;
+  }
+
+  private static Toolchain resolve(String binary, String path) throws IOException {
+    if (path == null && ClangFormatter.IS_MAC_OS) {
+      path = getLoginShellPath();
+    }
+    String searchPath = path != null ? path : System.getenv("PATH");
+    if (searchPath != null && binary.indexOf('/') < 0 && binary.indexOf(File.separatorChar) < 0) {
+      for (String p : searchPath.split(File.pathSeparator)) {
+        if (p.isEmpty()) {
+          continue;
+        }
+        File candidate = new File(p, binary);
+        if (candidate.isFile() && candidate.canExecute()) {
+          binary = candidate.getPath();
+          break;
+        }
+      }
+    }
+    return new Toolchain(binary, path, probeVersion(binary, path));
+  }
+
+  /**
+   * Mac OS X does not set a usable PATH for UI applications. This code spawns a login shell once,
+   * has it echo the actual PATH, and stores that way for future use (running a shell on each call
+   * is much too expensive).
+   */
+  private static synchronized String getLoginShellPath() throws IOException {
+    if (loginShellPath == null) {
+      InputStream input = new ProcessBuilder()
+                              .command("bash", "-l", "-r", "-c", "echo $PATH")
+                              .redirectErrorStream(true)
+                              .start()
+                              .getInputStream();
+      loginShellPath = ClangFormatter.readInput(input).trim();
+    }
+    return loginShellPath;
+  }
+
+  private static String probeVersion(String binary, String path) {
+    try {
+      ProcessBuilder builder = new ProcessBuilder(binary, "--version").redirectErrorStream(true);
+      if (path != null) {
+        builder.environment().put("PATH", path);
+      }
+      Process process = builder.start();
+      // The output is a single line and fits into the pipe buffer, so it can be read after exit.
+      if (!process.waitFor(5, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+        return "";
+      }
+      String output = ClangFormatter.readInput(process.getInputStream()).trim();
+      int newline = output.indexOf('\n');
+      return newline < 0 ? output : output.substring(0, newline);
+    } catch (IOException e) {
+      // Not installed; formatting will report this with more context.
+      return "";
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return "";
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package io.probst.idea.clangformat;
+
+import java.util.Arrays;
+
+/**
+ * Maps between character offsets in a text and byte offsets in its UTF-8 encoding.
+ *
+ * clang-format works on bytes, IntelliJ on UTF-16 characters. For ASCII text both are the same, and
+ * the index holds no data. Otherwise it stores the byte offset of every {@link #STRIDE}th
+ * character, so a lookup is a binary search plus a scan of at most {@code STRIDE} characters.
+ *
+ * Unpaired surrogates count as one byte, as Java's UTF-8 encoder replaces them with '?'.
+ */
+final class Utf8OffsetIndex {
+  static final int STRIDE = 64;
+
+  private final CharSequence text;
+  private final long modificationStamp;
+  /** Byte offset of character {@code i * STRIDE}, or null if the text is ASCII. */
+  private final int[] checkpoints;
+  private final int byteLength;
+
+  private Utf8OffsetIndex(CharSequence text, long modificationStamp) {
+    this.text = text;
+    this.modificationStamp = modificationStamp;
+    int length = text.length();
+    int[] checkpoints = new int[(length + STRIDE - 1) / STRIDE];
+    int bytes = 0;
+    for (int i = 0; i < length; i++) {
+      if (i % STRIDE == 0) {
+        checkpoints[i / STRIDE] = bytes;
+      }
+      bytes += byteWidth(text, i);
+    }
+    this.byteLength = bytes;
+    this.checkpoints = bytes == length ? null : checkpoints;
+  }
+
+  static Utf8OffsetIndex of(CharSequence text) {
+    return new Utf8OffsetIndex(text, -1);
+  }
+
+  /** Returns the index of {@code text}, tagged with the modification stamp it was taken at. */
+  static Utf8OffsetIndex of(CharSequence text, long modificationStamp) {
+    return new Utf8OffsetIndex(text, modificationStamp);
+  }
+
+  /** The modification stamp of the document the text was taken from, or -1. */
+  long modificationStamp() {
+    return modificationStamp;
+  }
+
+  boolean isAscii() {
+    return checkpoints == null;
+  }
+
+  int byteLength() {
+    return byteLength;
+  }
+
+  int toByteOffset(int charOffset) {
+    if (checkpoints == null || charOffset <= 0) {
+      return charOffset;
+    }
+    if (charOffset >= text.length()) {
+      return byteLength + charOffset - text.length();
+    }
+    int i = charOffset / STRIDE * STRIDE;
+    int bytes = checkpoints[charOffset / STRIDE];
+    for (; i < charOffset; i++) {
+      bytes += byteWidth(text, i);
+    }
+    return bytes;
+  }
+
+  int toCharOffset(int byteOffset) {
+    if (checkpoints == null || byteOffset <= 0) {
+      return byteOffset;
+    }
+    if (byteOffset >= byteLength) {
+      return text.length() + byteOffset - byteLength;
+    }
+    int checkpoint = Arrays.binarySearch(checkpoints, byteOffset);
+    if (checkpoint < 0) {
+      checkpoint = -checkpoint - 2;
+    }
+    int i = checkpoint * STRIDE;
+    int bytes = checkpoints[checkpoint];
+    while (bytes < byteOffset) {
+      bytes += byteWidth(text, i++);
+    }
+    // Map offsets before a surrogate pair to its high surrogate, not in between.
+    if (i > 0 && byteWidth(text, i - 1) == 0) {
+      i--;
+    }
+    return i;
+  }
+
+  /**
+   * Returns the number of UTF-8 bytes the character at {@code i} contributes. A surrogate pair is
+   * attributed entirely to its low surrogate, so that the offset after the pair maps exactly.
+   */
+  private static int byteWidth(CharSequence text, int i) {
+    char c = text.charAt(i);
+    if (c < 0x80) {
+      return 1;
+    } else if (c < 0x800) {
+      return 2;
+    } else if (Character.isHighSurrogate(c)) {
+      return i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)) ? 0 : 1;
+    } else if (Character.isLowSurrogate(c)) {
+      return i > 0 && Character.isHighSurrogate(text.charAt(i - 1)) ? 4 : 1;
+    }
+    return 3;
+  }
+}
@@ -0,0 +1,69 @@
+package io.probst.idea.clangformat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class CircuitBreakerTest {
+  private long now = 0;
+  private final CircuitBreaker breaker = new CircuitBreaker(() -> now);
+
+  private void advanceMillis(long millis) {
+    now += TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() {
+    for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+      assertFalse(breaker.recordFailure());
+    }
+    breaker.recordSuccess();
+    for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+      assertFalse(breaker.recordFailure());
+      assertTrue(breaker.allowAutomatic());
+    }
+    assertTrue(breaker.recordFailure());
+    assertFalse(breaker.allowAutomatic());
+  }
+
+  @Test
+  public void testProbesOncePerCoolDown() {
+    for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+      breaker.recordFailure();
+    }
+    advanceMillis(CircuitBreaker.INITIAL_COOL_DOWN_MILLIS);
+    assertTrue(breaker.allowAutomatic());
+    assertFalse(breaker.allowAutomatic());
+
+    // A failed probe doubles the cool-down.
+    assertFalse(breaker.recordFailure());
+    assertEquals(2 * CircuitBreaker.INITIAL_COOL_DOWN_MILLIS, breaker.coolDownMillis());
+    advanceMillis(CircuitBreaker.INITIAL_COOL_DOWN_MILLIS);
+    assertFalse(breaker.allowAutomatic());
+    advanceMillis(CircuitBreaker.INITIAL_COOL_DOWN_MILLIS);
+    assertTrue(breaker.allowAutomatic());
+
+    breaker.recordSuccess();
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allowAutomatic());
+    assertTrue(breaker.allowAutomatic());
+    assertEquals(CircuitBreaker.INITIAL_COOL_DOWN_MILLIS, breaker.coolDownMillis());
+  }
+
+  @Test
+  public void testDisabledNeverOpens() {
+    breaker.disable();
+    for (int i = 0; i < 2 * CircuitBreaker.FAILURE_THRESHOLD; i++) {
+      assertFalse(breaker.recordFailure());
+    }
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allowAutomatic());
+  }
+}
@@ -0,0 +1,90 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(JUnit4.class)
+public class ClangFormatterTest {
+
+  @Test
+  public void testWriteFileContentsAcrossChunks() {
+    // Surrogate pairs at every position around the chunk boundaries, and unpaired surrogates.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 100_000; i++) {
+      text.append(i % 7 == 0 ? "\ud83d\ude00" : "a\u00e9\u4e2d");
+    }
+    text.append("\ud83d x \ude00 \ud83d");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ClangFormatter.writeFileContents(text, out);
+    byte[] expected = text.toString().getBytes(StandardCharsets.UTF_8);
+    assertArrayEquals(expected, out.toByteArray());
+    assertEquals(expected.length, Utf8OffsetIndex.of(text).byteLength());
+
+    out.reset();
+    ClangFormatter.writeFileContents("", out);
+    assertEquals(0, out.size());
+  }
+
+  @Test
+  public void testReadInputBounded() throws IOException {
+    byte[] input = new byte[10_000];
+    Arrays.fill(input, (byte) 'e');
+    String read = ClangFormatter.readInput(new ByteArrayInputStream(input), 100);
+    assertEquals(new String(input, 0, 100, StandardCharsets.US_ASCII) + "... (9900 more bytes)",
+        read);
+  }
+
+  @Test
+  public void testShardsDoNotSkewTimeouts() throws Exception {
+    assumeTrue(File.separatorChar == '/' && Runtime.getRuntime().availableProcessors() >= 2);
+    Path dir = Files.createTempDirectory("clang-format-test");
+    Path log = dir.resolve("runs");
+    Path binary = dir.resolve("clang-format");
+    Files.write(binary, ("#!/bin/sh\n"
+        + "if [ \"$1\" = --version ]; then echo 'clang-format version 15.0.0'; exit 0; fi\n"
+        + "echo run >> '" + log + "'\n"
+        + "cat > /dev/null\n"
+        + "echo \"<replacements xml:space='preserve' incomplete_format='false'></replacements>\"\n")
+        .getBytes(StandardCharsets.UTF_8));
+    assertTrue(binary.toFile().setExecutable(true));
+
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 2 * ShardedFormatter.MIN_BYTES; i++) {
+      text.append("int f").append(i).append("() {\n  return ").append(i).append(";\n}\n\n");
+    }
+    int bytes = text.length();
+    ProcessScheduler scheduler = ProcessScheduler.INSTANCE;
+    for (int i = 0; i < 5; i++) {
+      scheduler.recordLatency(bytes, TimeUnit.SECONDS.toNanos(1));
+    }
+    long timeout = scheduler.timeoutNanos(bytes);
+
+    Toolchain.useFixed(binary.toString(), null);
+    try {
+      ClangFormatter.format(dir.resolve("big.cc").toString(), text, Utf8OffsetIndex.of(text), 0,
+          Collections.singletonList(new TextRange(0, text.length() - 1)));
+    } finally {
+      Toolchain.invalidate();
+    }
+    assertTrue("not sharded", Files.readAllLines(log).size() >= 2);
+    assertEquals(timeout, scheduler.timeoutNanos(bytes));
+  }
+}
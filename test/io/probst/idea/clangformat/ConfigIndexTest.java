@@ -0,0 +1,92 @@
+package io.probst.idea.clangformat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ConfigIndexTest {
+
+  private static File write(Path file, String contents) throws IOException {
+    Files.createDirectories(file.getParent());
+    Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+    return file.toFile();
+  }
+
+  @Test
+  public void testIsConfigFile() {
+    assertTrue(ConfigIndex.isConfigFile("/src/.clang-format"));
+    assertTrue(ConfigIndex.isConfigFile("/src/_clang-format"));
+    assertFalse(ConfigIndex.isConfigFile("/src/.clang-format.bak"));
+    assertFalse(ConfigIndex.isConfigFile("/src/.clang-format/a.cc"));
+  }
+
+  @Test
+  public void testFindsClosestConfig() throws IOException {
+    Path dir = Files.createTempDirectory("clang-format-test");
+    File root = write(dir.resolve(".clang-format"), "BasedOnStyle: LLVM\n");
+    File nested = write(dir.resolve("a/b/_clang-format"), "BasedOnStyle: Google\n");
+    ConfigIndex index = new ConfigIndex();
+    assertEquals(root, index.forFile(dir.resolve("a/x.cc").toString()).file);
+    assertEquals(nested, index.forFile(dir.resolve("a/b/x.cc").toString()).file);
+    assertEquals(nested, index.forFile(dir.resolve("a/b/c/x.cc").toString()).file);
+    assertNotEquals(index.forFile(dir.resolve("x.cc").toString()).fingerprint,
+        index.forFile(dir.resolve("a/b/x.cc").toString()).fingerprint);
+  }
+
+  @Test
+  public void testDisableFormat() throws IOException {
+    Path dir = Files.createTempDirectory("clang-format-test");
+    write(dir.resolve("off/.clang-format"), "BasedOnStyle: LLVM\nDisableFormat: true\n");
+    write(dir.resolve("language/.clang-format"), "Language: Cpp\nDisableFormat: true\n");
+    write(dir.resolve("documents/.clang-format"),
+        "---\nDisableFormat: true\n---\nLanguage: Proto\n");
+    ConfigIndex index = new ConfigIndex();
+    assertTrue(index.forFile(dir.resolve("off/x.cc").toString()).disablesFormat);
+    assertFalse(index.forFile(dir.resolve("language/x.cc").toString()).disablesFormat);
+    assertFalse(index.forFile(dir.resolve("documents/x.cc").toString()).disablesFormat);
+  }
+
+  @Test
+  public void testInheritParentConfig() throws IOException {
+    Path dir = Files.createTempDirectory("clang-format-test");
+    write(dir.resolve(".clang-format"), "BasedOnStyle: LLVM\n");
+    write(dir.resolve("a/.clang-format"), "BasedOnStyle: InheritParentConfig\n");
+    ConfigIndex index = new ConfigIndex();
+    ConfigIndex.Config config = index.forFile(dir.resolve("a/x.cc").toString());
+    assertTrue(config.inheritsParent);
+
+    // A change to the parent changes the child's fingerprint.
+    write(dir.resolve(".clang-format"), "BasedOnStyle: Google\n");
+    index.clear();
+    assertNotEquals(config.fingerprint,
+        index.forFile(dir.resolve("a/x.cc").toString()).fingerprint);
+  }
+
+  @Test
+  public void testRevalidatesChangedConfig() throws Exception {
+    Path dir = Files.createTempDirectory("clang-format-test");
+    File file = write(dir.resolve(".clang-format"), "BasedOnStyle: LLVM\n");
+    ConfigIndex index = new ConfigIndex();
+    String path = dir.resolve("x.cc").toString();
+    String fingerprint = index.forFile(path).fingerprint;
+
+    // Changed without a VFS event, e.g. above the project roots.
+    long modified = file.lastModified();
+    write(file.toPath(), "BasedOnStyle: Google\n");
+    assertTrue(file.setLastModified(modified + 2000));
+    Thread.sleep(ConfigIndex.REVALIDATE_MILLIS + 100);
+    assertNotEquals(fingerprint, index.forFile(path).fingerprint);
+  }
+}
@@ -0,0 +1,81 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class FormatCheckerTest {
+
+  @Test
+  public void testChangedLinesOfEqualTexts() {
+    assertNull(FormatChecker.changedLines("int a;\n", "int a;\n"));
+    assertNull(FormatChecker.changedLines("", ""));
+  }
+
+  @Test
+  public void testChangedLinesWithinLine() {
+    assertEquals(new TextRange(7, 13),
+        FormatChecker.changedLines("int a;\nint b;\nint c;\n", "int a;\nint x;\nint c;\n"));
+  }
+
+  @Test
+  public void testChangedLinesCoverInsertedLines() {
+    String current = "int a;\nint x;\nint y;\nint b;\n";
+    TextRange changed = FormatChecker.changedLines("int a;\nint b;\n", current);
+    int inserted = current.indexOf("int x;");
+    assertTrue(changed.toString(), changed.getStartOffset() <= inserted);
+    assertTrue(changed.toString(), changed.getEndOffset() >= current.indexOf("int b;") - 1);
+  }
+
+  @Test
+  public void testChangedLinesWithinBounds() {
+    // Deleting the last line, or everything, leaves an empty range at the end.
+    assertEquals(new TextRange(7, 7), FormatChecker.changedLines("int a;\nint b;", "int a;\n"));
+    assertEquals(new TextRange(0, 0), FormatChecker.changedLines("int a;\n", ""));
+  }
+
+  @Test
+  public void testMergeInDocumentOrder() {
+    Replacements retained = new Replacements();
+    retained.add(0, 1, "a");
+    retained.add(20, 1, "c");
+    Replacements formatted = new Replacements();
+    formatted.add(10, 2, "b");
+    Replacements merged = FormatChecker.merge(retained, formatted);
+    assertEquals(3, merged.size());
+    assertEquals("a", merged.value(0));
+    assertEquals("b", merged.value(1));
+    assertEquals("c", merged.value(2));
+  }
+
+  @Test
+  public void testMergeDropsOverlappingRetainedReplacements() {
+    Replacements retained = new Replacements();
+    retained.add(0, 1, "a");
+    retained.add(10, 1, "overlapping");
+    retained.add(12, 0, "touching");
+    retained.add(20, 1, "c");
+    Replacements formatted = new Replacements();
+    formatted.add(9, 3, "b");
+    Replacements merged = FormatChecker.merge(retained, formatted);
+    assertEquals(3, merged.size());
+    assertEquals(9, merged.offset(1));
+    assertEquals("b", merged.value(1));
+    assertEquals(20, merged.offset(2));
+  }
+
+  @Test
+  public void testMergeWithoutFormattedReplacements() {
+    Replacements retained = new Replacements();
+    retained.add(4, 2, "x");
+    Replacements merged = FormatChecker.merge(retained, new Replacements());
+    assertEquals(1, merged.size());
+    assertEquals(4, merged.offset(0));
+  }
+}
@@ -0,0 +1,83 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class FormatResultCacheTest {
+
+  private static FormatResultCache.Key key(int id) {
+    return new FormatResultCache.Key(new byte[] {(byte) id});
+  }
+
+  private static Replacements replacement(String value) {
+    Replacements replacements = new Replacements();
+    replacements.add(2, 1, value);
+    return replacements;
+  }
+
+  @Test
+  public void testMapsCursor() {
+    FormatResultCache cache = new FormatResultCache(1024 * 1024);
+    assertNull(cache.get(key(1), 10));
+    cache.put(key(1), replacement("xyz"));
+    Replacements cached = cache.get(key(1), 10);
+    assertEquals(1, cached.size());
+    assertEquals(12, cached.cursor);
+    assertEquals(1, cache.hitCount());
+    assertEquals(1, cache.missCount());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    // Room for two entries with a single short replacement.
+    FormatResultCache cache = new FormatResultCache(400);
+    cache.put(key(1), replacement("a"));
+    cache.put(key(2), replacement("b"));
+    assertNotNull(cache.get(key(1), 0));
+    cache.put(key(3), replacement("c"));
+    assertNull(cache.get(key(2), 0));
+    assertNotNull(cache.get(key(1), 0));
+    assertNotNull(cache.get(key(3), 0));
+  }
+
+  @Test
+  public void testSkipsEntriesLargerThanTheCache() {
+    FormatResultCache cache = new FormatResultCache(100);
+    cache.put(key(1), replacement("a"));
+    assertNull(cache.get(key(1), 0));
+  }
+
+  @Test
+  public void testKeyCoversInputs() throws Exception {
+    Path dir = Files.createTempDirectory("clang-format-test");
+    Toolchain.useFixed(dir.resolve("clang-format").toString(), null);
+    try {
+      Toolchain toolchain = Toolchain.get().get();
+      String path = dir.resolve("a.cc").toString();
+      List<TextRange> ranges = Collections.singletonList(new TextRange(0, 5));
+      FormatResultCache.Key key = FormatResultCache.key(path, "int a;", ranges, toolchain);
+      assertEquals(key, FormatResultCache.key(path, "int a;", ranges, toolchain));
+      assertFalse(key.equals(FormatResultCache.key(path, "int b;", ranges, toolchain)));
+      assertFalse(key.equals(FormatResultCache.key(path, "int a;",
+          Arrays.asList(new TextRange(0, 2), new TextRange(3, 5)), toolchain)));
+      assertFalse(key.equals(FormatResultCache.key(dir.resolve("a.h").toString(), "int a;",
+          ranges, toolchain)));
+    } finally {
+      Toolchain.invalidate();
+    }
+  }
+}
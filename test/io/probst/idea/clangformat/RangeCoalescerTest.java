@@ -0,0 +1,74 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class RangeCoalescerTest {
+
+  @Test
+  public void testMergesOverlappingAndTouchingRanges() {
+    List<TextRange> ranges = Arrays.asList(new TextRange(12, 15), new TextRange(3, 8),
+        new TextRange(0, 5), new TextRange(8, 10));
+    assertEquals(Arrays.asList(new TextRange(0, 10), new TextRange(12, 15)),
+        RangeCoalescer.coalesce(ranges, 0, RangeCoalescer.MAX_RANGES));
+  }
+
+  @Test
+  public void testKeepsEmptyRanges() {
+    // Caret positions: one inside a range, one at its end and one on its own.
+    List<TextRange> ranges = Arrays.asList(new TextRange(0, 10), new TextRange(5, 5),
+        new TextRange(10, 10), new TextRange(20, 20));
+    assertEquals(Arrays.asList(new TextRange(0, 10), new TextRange(20, 20)),
+        RangeCoalescer.coalesce(ranges, 0, RangeCoalescer.MAX_RANGES));
+  }
+
+  @Test
+  public void testMergesRangesWithinGap() {
+    List<TextRange> ranges = Arrays.asList(new TextRange(0, 10), new TextRange(13, 20),
+        new TextRange(30, 40));
+    assertEquals(Arrays.asList(new TextRange(0, 20), new TextRange(30, 40)),
+        RangeCoalescer.coalesce(ranges, 3, RangeCoalescer.MAX_RANGES));
+    assertEquals(ranges, RangeCoalescer.coalesce(ranges, 2, RangeCoalescer.MAX_RANGES));
+  }
+
+  @Test
+  public void testClosesSmallestGapsFirst() {
+    // Gaps of 2, 10, 1 and 20 characters.
+    List<TextRange> ranges = Arrays.asList(new TextRange(0, 1), new TextRange(3, 4),
+        new TextRange(14, 15), new TextRange(16, 17), new TextRange(37, 38));
+    assertEquals(Arrays.asList(new TextRange(0, 4), new TextRange(14, 17), new TextRange(37, 38)),
+        RangeCoalescer.coalesce(ranges, 0, 3));
+    assertEquals(Arrays.asList(new TextRange(0, 17), new TextRange(37, 38)),
+        RangeCoalescer.coalesce(ranges, 0, 2));
+    assertEquals(Arrays.asList(new TextRange(0, 38)), RangeCoalescer.coalesce(ranges, 0, 1));
+  }
+
+  @Test
+  public void testLimitsManyRanges() {
+    List<TextRange> ranges = new ArrayList<>();
+    for (int i = 0; i < RangeCoalescer.MAX_RANGES * 3; i++) {
+      ranges.add(new TextRange(i * 10, i * 10 + 5));
+    }
+    List<TextRange> coalesced = RangeCoalescer.coalesce(ranges, 0, RangeCoalescer.MAX_RANGES);
+    assertTrue(coalesced.size() <= RangeCoalescer.MAX_RANGES);
+    // Every input range is still covered.
+    for (TextRange range : ranges) {
+      boolean covered = false;
+      for (TextRange c : coalesced) {
+        covered |= c.getStartOffset() <= range.getStartOffset()
+            && range.getEndOffset() <= c.getEndOffset();
+      }
+      assertTrue(range.toString(), covered);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package io.probst.idea.clangformat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class ReplacementsTest {
+
+  @Test
+  public void testParseReplacementsXml() {
+    Replacements replacements = Replacements.parse(
+        new ByteArrayInputStream(("<replacements xml:space='preserve' incomplete_format='false'>\n" +
+            "<cursor>1</cursor>\n" +
+            "<replacement offset='2' length='3'>hello</replacement>\n" +
+            "<replacement offset='4' length='5'>&#10;world </replacement>\n" +
+            "</replacements>").getBytes(StandardCharsets.UTF_8)));
+    assertEquals(1, replacements.cursor);
+    assertEquals(2, replacements.size());
+    assertEquals(2, replacements.offset(0));
+    assertEquals(3, replacements.length(0));
+    assertEquals("hello", replacements.value(0));
+    assertEquals(4, replacements.offset(1));
+    assertEquals(5, replacements.length(1));
+    assertEquals("\nworld ", replacements.value(1));
+  }
+
+  @Test
+  public void testParseReplacementsXmlWithoutReplacements() {
+    Replacements replacements = Replacements.parse(
+        new ByteArrayInputStream(("<?xml version='1.0'?>\n" +
+            "<replacements xml:space='preserve' incomplete_format='false'>\n" +
+            "<cursor>7</cursor>\n" +
+            "</replacements>\n").getBytes(StandardCharsets.UTF_8)));
+    assertEquals(7, replacements.cursor);
+    assertEquals(0, replacements.size());
+  }
+
+  @Test
+  public void testMapOffset() {
+    Replacements replacements = new Replacements();
+    replacements.add(2, 3, "x");
+    replacements.add(10, 0, "abc");
+    assertEquals(1, replacements.mapOffset(1));
+    assertEquals(2, replacements.mapOffset(2));
+    assertEquals(3, replacements.mapOffset(4));
+    assertEquals(4, replacements.mapOffset(6));
+    assertEquals(8, replacements.mapOffset(10));
+    assertEquals(12, replacements.mapOffset(11));
+  }
+
+  @Test
+  public void testApplyTo() {
+    Replacements replacements = new Replacements();
+    replacements.add(0, 0, "// ");
+    replacements.add(3, 4, " ");
+    replacements.add(13, 1, "");
+    assertEquals("// int x = 1;", replacements.applyTo("int    x = 1;;"));
+  }
+}
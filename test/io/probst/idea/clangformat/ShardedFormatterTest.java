@@ -0,0 +1,87 @@
+package io.probst.idea.clangformat;
+
+import com.intellij.openapi.util.TextRange;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class ShardedFormatterTest {
+
+  /** Returns the (1-based) line numbers of the safe boundaries in {@code lines}. */
+  private static List<Integer> boundaryLines(String... lines) {
+    String text = String.join("\n", lines);
+    List<Integer> result = ShardedFormatter.safeBoundaries(text, new TextRange(0, text.length()));
+    for (int i = 0; i < result.size(); i++) {
+      result.set(i, text.substring(0, result.get(i)).split("\n", -1).length);
+    }
+    return result;
+  }
+
+  @Test
+  public void testSafeBoundaries() {
+    assertEquals(Arrays.asList(3, 5, 9, 11, 15, 19), boundaryLines(
+        "#ifndef FOO_H",
+        "#define FOO_H",
+        "",
+        "namespace a {",
+        "",
+        "void f() {",
+        "",
+        "}",
+        "",
+        "// not a /* block comment",
+        "",
+        "const char* s = R\"x(",
+        "",
+        ")x\";",
+        "",
+        "int x =",
+        "",
+        "    1'000;",
+        "",
+        "}  // namespace a",
+        "#endif"));
+  }
+
+  @Test
+  public void testSafeBoundariesFollowFirstBranch() {
+    assertEquals(Arrays.asList(9), boundaryLines(
+        "#if A",
+        "void g() {",
+        "#else",
+        "void g(int) {",
+        "",
+        "#endif",
+        "",
+        "}",
+        "",
+        "int y;"));
+  }
+
+  @Test
+  public void testMerge() {
+    List<TextRange> shards = Arrays.asList(new TextRange(0, 10), new TextRange(12, 30));
+    Replacements first = new Replacements();
+    first.add(3, 1, "  ");
+    Replacements second = new Replacements();
+    second.add(12, 2, "\n");
+    second.add(20, 0, "x");
+    second.cursor = 24;
+
+    Replacements merged = ShardedFormatter.merge(shards, Arrays.asList(first, second), 22);
+    assertEquals(3, merged.size());
+    // The second shard's cursor, shifted by the first shard's replacement.
+    assertEquals(25, merged.cursor);
+
+    Replacements overlapping = new Replacements();
+    overlapping.add(3, 9, "");
+    assertNull(ShardedFormatter.merge(shards, Arrays.asList(overlapping, second), 0));
+  }
+}
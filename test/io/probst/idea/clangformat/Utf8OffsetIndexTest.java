@@ -0,0 +1,48 @@
+package io.probst.idea.clangformat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class Utf8OffsetIndexTest {
+
+  @Test
+  public void testAscii() {
+    Utf8OffsetIndex index = Utf8OffsetIndex.of("int x = 1;\n");
+    assertTrue(index.isAscii());
+    assertEquals(4, index.toByteOffset(4));
+    assertEquals(4, index.toCharOffset(4));
+  }
+
+  @Test
+  public void testMultibyte() {
+    // U+00E9 is two bytes, U+4E2D three, and U+1F600 a surrogate pair encoded in four bytes.
+    String text = "a\u00e9b\u4e2dc\ud83d\ude00d";
+    Utf8OffsetIndex index = Utf8OffsetIndex.of(text);
+    int[] chars = {0, 1, 2, 3, 4, 5, 7, 8};
+    int[] bytes = {0, 1, 3, 4, 7, 8, 12, 13};
+    for (int i = 0; i < chars.length; i++) {
+      assertEquals(bytes[i], index.toByteOffset(chars[i]));
+      assertEquals(chars[i], index.toCharOffset(bytes[i]));
+    }
+    assertEquals(13, index.byteLength());
+  }
+
+  @Test
+  public void testAcrossCheckpoints() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < Utf8OffsetIndex.STRIDE * 3; i++) {
+      text.append(i % 2 == 0 ? "\u00e9" : "x");
+    }
+    Utf8OffsetIndex index = Utf8OffsetIndex.of(text);
+    for (int c = 0; c <= text.length(); c++) {
+      int b = c + (c + 1) / 2;
+      assertEquals(b, index.toByteOffset(c));
+      assertEquals(c, index.toCharOffset(b));
+    }
+  }
+}